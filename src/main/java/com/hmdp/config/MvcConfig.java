@@ -2,11 +2,13 @@ package com.hmdp.config;
 
 import javax.annotation.Resource;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 
@@ -16,6 +18,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /*
+     * 管理接口的token, 未設定時拒絕所有管理請求
+     */
+    @Value("${hmdp.admin.token:}")
+    private String adminToken;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登入攔截器
@@ -27,8 +35,11 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/blog/hot",
                         "/user/code",
-                        "/user/login")
+                        "/user/login",
+                        "/admin/**")
                 .order(1);
+        // 管理接口攔截器, 以token驗證, 不需要用戶登入
+        registry.addInterceptor(new AdminInterceptor(adminToken)).addPathPatterns("/admin/**").order(1);
         // 刷新token攔截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
     }
@@ -2,15 +2,26 @@ package com.hmdp.config;
 
 import com.baomidou.mybatisplus.annotation.DbType;
 import com.baomidou.mybatisplus.extension.plugins.MybatisPlusInterceptor;
+import com.baomidou.mybatisplus.extension.plugins.inner.DynamicTableNameInnerInterceptor;
 import com.baomidou.mybatisplus.extension.plugins.inner.PaginationInnerInterceptor;
+import com.hmdp.utils.OrderTableRouter;
+
+import java.util.Collections;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
 public class MybatisConfig {
     @Bean
-    public MybatisPlusInterceptor mybatisPlusInterceptor() {
+    public MybatisPlusInterceptor mybatisPlusInterceptor(OrderTableRouter orderTableRouter) {
         MybatisPlusInterceptor interceptor = new MybatisPlusInterceptor();
+        // 訂單分表, 需在分頁之前替換表名
+        if (orderTableRouter.isEnabled()) {
+            DynamicTableNameInnerInterceptor dynamicTableName = new DynamicTableNameInnerInterceptor();
+            dynamicTableName.setTableNameHandlerMap(Collections.singletonMap(OrderTableRouter.TABLE, orderTableRouter));
+            interceptor.addInnerInterceptor(dynamicTableName);
+        }
         interceptor.addInnerInterceptor(new PaginationInnerInterceptor(DbType.MYSQL));
         return interceptor;
     }
@@ -0,0 +1,94 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+
+import javax.annotation.Resource;
+
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/*
+ * 秒殺券的管理接口, 需帶 X-Admin-Token (見 AdminInterceptor)
+ */
+@RestController
+@RequestMapping("/admin/seckill")
+public class SeckillAdminController {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+
+    /**
+     * 查询已预热到Redis的秒杀券
+     * @return 秒杀券库存、分段数与开始结束时间
+     */
+    @GetMapping("/preheated")
+    public Result queryPreheated() {
+        return Result.ok(seckillVoucherService.queryPreheated());
+    }
+
+    /**
+     * 立即预热即将开始的秒杀券
+     * @return 本次预热的秒杀券数量
+     */
+    @PostMapping("/preheat")
+    public Result preheat() {
+        return Result.ok(seckillVoucherService.preheat());
+    }
+
+    /**
+     * 立即对帐一批秒杀券的Redis与数据库库存
+     * @return 各秒杀券的库存差异
+     */
+    @PostMapping("/reconcile")
+    public Result reconcile() {
+        return Result.ok(seckillVoucherService.reconcile());
+    }
+
+    /**
+     * 查询秒杀券的限流设定
+     * @return 预设值与各秒杀券调整过的限流值
+     */
+    @GetMapping("/limit")
+    public Result queryLimits() {
+        return Result.ok(seckillAdmissionLimiter.queryLimits());
+    }
+
+    /**
+     * 调整秒杀券的限流值，立即同步到所有节点
+     * @param voucherId 秒杀券id
+     * @param permitsPerSecond 本地令牌桶每秒补充数，0代表不限制
+     * @param burst 本地令牌桶容量
+     * @param redisLimit 集群共用的滑动窗口上限，0代表不使用Redis限流
+     * @return 调整后的限流值
+     */
+    @PutMapping("/{id}/limit")
+    public Result updateLimit(@PathVariable("id") Long voucherId,
+                              @RequestParam("permitsPerSecond") Long permitsPerSecond,
+                              @RequestParam(value = "burst", defaultValue = "0") Long burst,
+                              @RequestParam(value = "redisLimit", defaultValue = "0") Long redisLimit) {
+        SeckillAdmissionLimiter.Limit limit = seckillAdmissionLimiter.updateLimit(voucherId,
+                new SeckillAdmissionLimiter.Limit(permitsPerSecond, burst, redisLimit));
+        return Result.ok(limit.toMap());
+    }
+
+    /**
+     * 移除秒杀券的限流设定，恢复预设值
+     * @param voucherId 秒杀券id
+     */
+    @DeleteMapping("/{id}/limit")
+    public Result resetLimit(@PathVariable("id") Long voucherId) {
+        seckillAdmissionLimiter.resetLimit(voucherId);
+        return Result.ok();
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherOrderService;
+
+import java.time.LocalDateTime;
+
+import javax.annotation.Resource;
+
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/*
+ * 訂單的管理接口, 可查詢所有用戶的訂單, 需帶 X-Admin-Token (見 AdminInterceptor)
+ */
+@RestController
+@RequestMapping("/admin/voucher-order")
+public class VoucherOrderAdminController {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /*
+     * 依下單時間查詢訂單, 時間格式 2026-11-01T00:00:00, 分表時只查詢區間內的月份
+     */
+    @GetMapping("list")
+    public Result queryOrders(
+            @RequestParam("begin") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime begin,
+            @RequestParam("end") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime end,
+            @RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.queryOrders(begin, end, count);
+    }
+
+    /*
+     * 死信Queue中的訂單包含其他用戶的資料, 只供管理者查詢及重放
+     */
+    @GetMapping("dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    @PostMapping("dlq/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") String id) {
+        return voucherOrderService.replayDeadLetter(id);
+    }
+}
@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务类
@@ -13,4 +16,11 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher);
+
+    int preheat();
+
+    List<Map<Object, Object>> queryPreheated();
+
+    List<Map<String, Object>> reconcile();
 }
@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.time.LocalDateTime;
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -16,5 +19,19 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    Result seckillVouchers(List<Long> voucherIds, boolean atomic);
+
+    Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    boolean createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    boolean cancelVoucherOrder(Long orderId, Long voucherId);
+
+    Result queryOrderStatus(Long orderId);
+
+    Result queryDeadLetters(Integer count);
+
+    Result replayDeadLetter(String id);
+
+    Result queryOrders(LocalDateTime begin, LocalDateTime end, Integer count);
 }
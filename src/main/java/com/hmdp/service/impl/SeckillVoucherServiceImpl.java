@@ -1,11 +1,47 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.OrderTableRouter;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillStateCache;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +50,529 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private SeckillStateCache seckillStateCache;
+
+    @Resource
+    private OrderTableRouter orderTableRouter;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /*
+     * 秒殺庫存分段數, 大於1時庫存拆成多個子key, 分散熱點
+     */
+    @Value("${hmdp.seckill.stock-segments:1}")
+    private int stockSegments;
+
+    /*
+     * 購買用戶記錄方式: set 以userId字串存放在SET; bitmap 以userId為偏移量, 秒殺結束後自動過期
+     */
+    @Value("#{'${hmdp.seckill.buyer-mode:set}' == 'bitmap'}")
+    private boolean buyerBitmap;
+
+    /*
+     * 預熱在此時間內開始的秒殺券
+     */
+    @Value("${hmdp.seckill.preheat.window:30m}")
+    private Duration preheatWindow;
+
+    /*
+     * 每次對帳的秒殺券數量, 以游標分批掃描, 避免秒殺期間對資料庫造成壓力
+     */
+    @Value("${hmdp.seckill.reconcile.batch-size:20}")
+    private int reconcileBatchSize;
+
+    /*
+     * 秒殺結束後仍持續對帳的時間
+     */
+    @Value("${hmdp.seckill.reconcile.after-end:1h}")
+    private Duration reconcileAfterEnd;
+
+    /*
+     * 是否自動修正Redis庫存與購買用戶
+     */
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean reconcileRepair;
+
+    private static final DefaultRedisScript<Long> REPAIR_SCRIPT;
+    static {
+        REPAIR_SCRIPT = new DefaultRedisScript<>();
+        REPAIR_SCRIPT.setLocation(new ClassPathResource("seckill_repair.lua"));
+        REPAIR_SCRIPT.setResultType(Long.class);
+    }
+
+    /*
+     * 訂單狀態 4: 已取消 (逾期未付款), 已歸還庫存, 但仍佔用一人一單
+     */
+    private static final int ORDER_CANCELLED = 4;
+
+    /*
+     * 一張秒殺券的差異值 (type: redis/db/pipeline), 註冊為 seckill.stock.drift 指標
+     */
+    private static class Drift {
+        /*
+         * 秒殺結束且超過 reconcile.after-end 後不再對帳, 移除指標
+         */
+        private final long expireAt;
+        private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+
+        Drift(long expireAt) {
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final Map<Long, Drift> drifts = new ConcurrentHashMap<>();
+
+    /*
+     * 上一輪對帳的數值, 連續兩輪不變才視為穩定, 才允許修正
+     */
+    private final Map<Long, String> lastSnapshots = new ConcurrentHashMap<>();
+
+    @Override
+    public void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher) {
+        saveSeckillVoucher2Redis(seckillVoucher, Collections.emptyList(), seckillVoucher.getStock());
+    }
+
+    /*
+     * initialStock 為原始庫存, 已開始的秒殺為資料庫庫存加上未取消的訂單數, 對帳以此計算差異
+     */
+    private void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher, List<String> buyers, long initialStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        String buyersKey = RedisConstants.SECKILL_BUYERS_KEY + voucherId;
+        // 每段至少分到1個庫存
+        int segments = Math.max(1, Math.min(stockSegments, stock));
+
+        // 優惠券資訊: 原始庫存、分段數、開始與結束時間(毫秒)、購買用戶記錄方式, 供lua腳本在同一次呼叫中檢查
+        Map<String, String> meta = new HashMap<>(5);
+        meta.put("stock", String.valueOf(initialStock));
+        meta.put("segments", String.valueOf(segments));
+        meta.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        meta.put("buyers", buyerBitmap ? "bitmap" : "set");
+
+        // 使用pipeline一次寫入
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (segments == 1) {
+                conn.set(stockKey, String.valueOf(stock));
+            } else {
+                // 平均拆分, 餘數分給前幾段, 總和與原庫存一致
+                for (int i = 0; i < segments; i++) {
+                    int segmentStock = stock / segments + (i < stock % segments ? 1 : 0);
+                    conn.set(stockKey + ":" + i, String.valueOf(segmentStock));
+                }
+            }
+            conn.hMSet(RedisConstants.SECKILL_META_KEY + voucherId, meta);
+
+            // 重置購買用戶
+            conn.del(orderKey, buyersKey);
+            if (buyerBitmap) {
+                // 先建立key才能設定過期時間, userId從1開始, 偏移量0不會被使用
+                conn.setBit(buyersKey, 0, false);
+                for (String buyer : buyers) {
+                    conn.setBit(buyersKey, Long.parseLong(buyer), true);
+                }
+                // 對帳結束後過期
+                conn.pExpireAt(buyersKey, toEpochMilli(seckillVoucher.getEndTime()) + reconcileAfterEnd.toMillis());
+            } else if (!buyers.isEmpty()) {
+                conn.sAdd(orderKey, buyers.toArray(new String[0]));
+            }
+
+            // 清除售罄標記
+            conn.del(RedisConstants.SECKILL_SOLD_OUT_KEY + voucherId);
+
+            // 記錄已預熱的優惠券, 以結束時間為分數方便清理
+            conn.zAdd(RedisConstants.SECKILL_PREHEATED_KEY, toEpochMilli(seckillVoucher.getEndTime()),
+                    voucherId.toString());
+            return null;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval:60000}")
+    public void preheatTask() {
+        try {
+            int count = preheat();
+            if (count > 0) {
+                log.info("預熱 {} 張秒殺券", count);
+            }
+        } catch (Exception e) {
+            log.error("預熱秒殺券異常", e);
+        }
+    }
+
+    @Override
+    public int preheat() {
+        // 多個節點同時只需一個執行
+        RLock lock = redissonClient.getLock("lock:seckill:preheat");
+        if (!lock.tryLock()) {
+            return 0;
+        }
+
+        try {
+            // 清理已結束的預熱記錄
+            long nowMillis = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().removeRangeByScore(RedisConstants.SECKILL_PREHEATED_KEY, 0, nowMillis);
+
+            // 查詢即將開始或進行中的秒殺券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = query()
+                    .le("begin_time", now.plus(preheatWindow))
+                    .gt("end_time", now)
+                    .list();
+            if (vouchers.isEmpty()) {
+                return 0;
+            }
+
+            // 批量檢查Redis中是否已有優惠券資訊
+            List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (SeckillVoucher voucher : vouchers) {
+                    conn.exists(RedisConstants.SECKILL_META_KEY + voucher.getVoucherId());
+                }
+                return null;
+            });
+
+            int count = 0;
+            for (int i = 0; i < vouchers.size(); i++) {
+                if (Boolean.TRUE.equals(exists.get(i))) {
+                    continue;
+                }
+                SeckillVoucher voucher = vouchers.get(i);
+
+                // 已開始的秒殺 (例如Redis被清空), 從已有訂單恢復購買用戶, 庫存以資料庫為準
+                // 原始庫存需加回已售出的數量, 否則對帳時資料庫差異永遠等於訂單數, 無法修正
+                List<String> buyers = Collections.emptyList();
+                long initialStock = voucher.getStock();
+                if (!voucher.getBeginTime().isAfter(now)) {
+                    buyers = queryBuyers(voucher);
+                    initialStock += countOrders(voucher, false);
+                }
+                saveSeckillVoucher2Redis(voucher, buyers, initialStock);
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> queryBuyers(SeckillVoucher voucher) {
+        List<String> buyers = new ArrayList<>();
+        // 分表時只查詢秒殺期間的月份
+        for (String table : orderTableRouter.tablesBetween(voucher.getBeginTime(), voucher.getEndTime())) {
+            // 已取消的訂單也保留購買用戶, 不可再次下單
+            List<Object> userIds = orderTableRouter.route(table, () -> voucherOrderMapper.selectObjs(
+                    new QueryWrapper<VoucherOrder>()
+                            .select("user_id")
+                            .eq("voucher_id", voucher.getVoucherId())));
+            for (Object userId : userIds) {
+                buyers.add(userId.toString());
+            }
+        }
+        return buyers;
+    }
+
+    /*
+     * 訂單數, cancelled 為true時只計算已取消的訂單, 否則只計算未取消 (佔用庫存) 的訂單
+     */
+    private long countOrders(SeckillVoucher voucher, boolean cancelled) {
+        long orders = 0;
+        for (String table : orderTableRouter.tablesBetween(voucher.getBeginTime(), voucher.getEndTime())) {
+            QueryWrapper<VoucherOrder> wrapper = new QueryWrapper<VoucherOrder>()
+                    .eq("voucher_id", voucher.getVoucherId());
+            if (cancelled) {
+                wrapper.eq("status", ORDER_CANCELLED);
+            } else {
+                wrapper.ne("status", ORDER_CANCELLED);
+            }
+            orders += orderTableRouter.route(table, () -> voucherOrderMapper.selectCount(wrapper));
+        }
+        return orders;
+    }
+
+    @Override
+    public List<Map<Object, Object>> queryPreheated() {
+        Set<String> ids = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_PREHEATED_KEY, 0, -1);
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Map<Object, Object>> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Map<Object, Object> meta = new HashMap<>(stringRedisTemplate.opsForHash()
+                    .entries(RedisConstants.SECKILL_META_KEY + id));
+            meta.put("voucherId", id);
+            result.add(meta);
+        }
+        return result;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:30000}")
+    public void reconcileTask() {
+        // 每個節點都移除自己註冊過, 已不再對帳的秒殺券指標
+        removeExpiredDrifts();
+        try {
+            reconcile();
+        } catch (Exception e) {
+            log.error("秒殺庫存對帳異常", e);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> reconcile() {
+        // 多個節點同時只需一個執行
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return Collections.emptyList();
+        }
+
+        try {
+            // 從上次的游標繼續
+            String cursorStr = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_RECONCILE_CURSOR_KEY);
+            long cursor = cursorStr == null ? 0 : Long.parseLong(cursorStr);
+
+            // 查詢進行中或剛結束的秒殺券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = query()
+                    .gt("voucher_id", cursor)
+                    .le("begin_time", now)
+                    .gt("end_time", now.minus(reconcileAfterEnd))
+                    .orderByAsc("voucher_id")
+                    .last("LIMIT " + reconcileBatchSize)
+                    .list();
+
+            // 更新游標, 掃到尾端後從頭開始
+            long nextCursor = vouchers.size() < reconcileBatchSize ? 0
+                    : vouchers.get(vouchers.size() - 1).getVoucherId();
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_RECONCILE_CURSOR_KEY,
+                    String.valueOf(nextCursor));
+
+            List<Map<String, Object>> reports = new ArrayList<>(vouchers.size());
+            for (SeckillVoucher voucher : vouchers) {
+                Map<String, Object> report = reconcile(voucher);
+                if (report != null) {
+                    reports.add(report);
+                }
+            }
+            return reports;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Map<String, Object> reconcile(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+
+        // 1. 查詢Redis: 原始庫存、分段數、購買用戶記錄方式、購買用戶數 (兩種方式都查, 依記錄方式取值)
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.hMGet(RedisConstants.SECKILL_META_KEY + voucherId, "stock", "segments", "buyers");
+            conn.sCard(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            conn.bitCount(RedisConstants.SECKILL_BUYERS_KEY + voucherId);
+            conn.hGetAll(RedisConstants.SECKILL_LEASE_KEY + voucherId);
+            return null;
+        });
+        List<?> meta = (List<?>) values.get(0);
+        if (meta.get(0) == null) {
+            // 尚未預熱
+            return null;
+        }
+        long initialStock = Long.parseLong(meta.get(0).toString());
+        int segments = meta.get(1) == null ? 1 : Integer.parseInt(meta.get(1).toString());
+        boolean bitmap = "bitmap".equals(meta.get(2));
+        long buyers = (Long) values.get(bitmap ? 2 : 1);
+
+        // 各節點租出但尚未售出的庫存 (seckill:lease:{id}:{node}), 以及為Redis不可用時預留的庫存 (reserve:{node})
+        long leased = 0;
+        long reserved = 0;
+        List<String> nodeLeaseKeys = new ArrayList<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) values.get(3)).entrySet()) {
+            String field = entry.getKey().toString();
+            if (field.startsWith("reserve:")) {
+                if (!field.endsWith(":exp")) {
+                    reserved += Long.parseLong(entry.getValue().toString());
+                }
+            } else if (field.endsWith(":exp")) {
+                nodeLeaseKeys.add(RedisConstants.SECKILL_LEASE_KEY + voucherId + ":"
+                        + field.substring(0, field.length() - 4));
+            }
+        }
+        if (!nodeLeaseKeys.isEmpty()) {
+            List<String> remaining = stringRedisTemplate.opsForValue().multiGet(nodeLeaseKeys);
+            if (remaining != null) {
+                for (String n : remaining) {
+                    leased += n == null ? 0 : Long.parseLong(n);
+                }
+            }
+        }
+
+        // 2. 查詢Redis庫存, 分段時加總, 並計入租出未售的數量
+        List<String> stockKeys = new ArrayList<>(segments);
+        if (segments > 1) {
+            for (int i = 0; i < segments; i++) {
+                stockKeys.add(stockKey + ":" + i);
+            }
+        } else {
+            stockKeys.add(stockKey);
+        }
+        long redisStock = leased + reserved;
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (stocks != null) {
+            for (String stock : stocks) {
+                redisStock += stock == null ? 0 : Long.parseLong(stock);
+            }
+        }
+
+        // 3. 查詢資料庫: 訂單數、已取消的訂單數與庫存
+        long orders = countOrders(voucher, false);
+        long cancelled = countOrders(voucher, true);
+        long dbStock = voucher.getStock();
+
+        // 4. 計算差異
+        // Redis: 原始庫存 = Redis庫存 + 購買用戶數 - 已取消 (已歸還庫存但保留購買用戶)
+        long redisDrift = initialStock - redisStock - buyers + cancelled;
+        // 資料庫: 原始庫存 = 資料庫庫存 + 訂單數
+        long dbDrift = initialStock - dbStock - orders;
+        // 已在Redis搶到但尚未(或未能)建立的訂單
+        long pipelineDrift = buyers - orders - cancelled;
+        recordDrift(voucher, "redis", redisDrift);
+        recordDrift(voucher, "db", dbDrift);
+        recordDrift(voucher, "pipeline", pipelineDrift);
+
+        // 5. 數值連續兩輪不變, 代表沒有進行中的訂單, 剩餘的差異為被丟棄的訂單
+        String snapshot = redisStock + "," + buyers + "," + orders + "," + cancelled + "," + dbStock;
+        boolean stable = snapshot.equals(lastSnapshots.put(voucherId, snapshot));
+        boolean repaired = false;
+        // 有租約時庫存分散在各節點, 不修正; 預留的庫存保留不動, 只修正庫存key
+        if (reconcileRepair && stable && leased == 0 && dbDrift == 0 && dbStock >= reserved
+                && (pipelineDrift != 0 || redisStock != dbStock)) {
+            repaired = repair(voucher, redisStock - reserved, dbStock - reserved, bitmap);
+        }
+
+        if (redisDrift != 0 || dbDrift != 0 || pipelineDrift != 0) {
+            log.warn("秒殺庫存不一致, voucherId: {}, redisStock: {}, buyers: {}, orders: {}, dbStock: {}, repaired: {}",
+                    voucherId, redisStock, buyers, orders, dbStock, repaired);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("voucherId", voucherId);
+        report.put("initialStock", initialStock);
+        report.put("redisStock", redisStock);
+        report.put("leased", leased);
+        report.put("reserved", reserved);
+        report.put("buyers", buyers);
+        report.put("orders", orders);
+        report.put("cancelled", cancelled);
+        report.put("dbStock", dbStock);
+        report.put("redisDrift", redisDrift);
+        report.put("dbDrift", dbDrift);
+        report.put("pipelineDrift", pipelineDrift);
+        report.put("repaired", repaired);
+        return report;
+    }
+
+    private boolean repair(SeckillVoucher voucher, long redisStock, long dbStock, boolean bitmap) {
+        Long voucherId = voucher.getVoucherId();
+        // 找出沒有訂單的購買用戶
+        Set<String> dropped = bitmap ? queryBitmapBuyers(voucherId) : new HashSet<>();
+        if (!bitmap) {
+            Set<String> members = stringRedisTemplate.opsForSet()
+                    .members(RedisConstants.SECKILL_ORDER_KEY + voucherId);
+            if (members != null) {
+                dropped.addAll(members);
+            }
+        }
+        queryBuyers(voucher).forEach(dropped::remove);
+
+        // 以資料庫為準重設Redis庫存並移除購買用戶, 期間庫存有變化則放棄
+        List<String> args = new ArrayList<>(dropped.size() + 3);
+        args.add(voucherId.toString());
+        args.add(String.valueOf(redisStock));
+        args.add(String.valueOf(dbStock));
+        args.addAll(dropped);
+        Long result = stringRedisTemplate.execute(REPAIR_SCRIPT, Collections.emptyList(), args.toArray());
+        if (result == null || result != 1) {
+            return false;
+        }
+
+        log.info("已修正秒殺庫存, voucherId: {}, redisStock: {} -> {}, 移除購買用戶: {}", voucherId, redisStock, dbStock,
+                dropped.size());
+        lastSnapshots.remove(voucherId);
+        if (dbStock > 0) {
+            // 補回庫存, 通知各節點清除售罄標記
+            seckillStateCache.clear(voucherId);
+        }
+        return true;
+    }
+
+    /*
+     * 讀取整個bitmap找出已設定的userId, 只在修正時使用
+     */
+    private Set<String> queryBitmapBuyers(Long voucherId) {
+        byte[] key = (RedisConstants.SECKILL_BUYERS_KEY + voucherId).getBytes(StandardCharsets.UTF_8);
+        byte[] bits = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+        Set<String> buyers = new HashSet<>();
+        if (bits == null) {
+            return buyers;
+        }
+        // Redis bitmap 的偏移量0為第一個位元組的最高位
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i] == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((bits[i] & (0x80 >>> j)) != 0) {
+                    buyers.add(String.valueOf((long) i * 8 + j));
+                }
+            }
+        }
+        return buyers;
+    }
+
+    private void recordDrift(SeckillVoucher voucher, String type, long value) {
+        Long voucherId = voucher.getVoucherId();
+        Drift drift = drifts.computeIfAbsent(voucherId,
+                k -> new Drift(toEpochMilli(voucher.getEndTime()) + reconcileAfterEnd.toMillis()));
+        drift.values.computeIfAbsent(type, k -> meterRegistry.gauge("seckill.stock.drift",
+                Tags.of("voucherId", voucherId.toString(), "type", type), new AtomicLong())).set(value);
+    }
+
+    /*
+     * 秒殺結束超過 reconcile.after-end 的秒殺券不再對帳, 移除其指標及上一輪的數值, 避免指標數量無限增長
+     */
+    private void removeExpiredDrifts() {
+        long now = System.currentTimeMillis();
+        drifts.entrySet().removeIf(entry -> {
+            if (entry.getValue().expireAt > now) {
+                return false;
+            }
+            Long voucherId = entry.getKey();
+            meterRegistry.find("seckill.stock.drift").tag("voucherId", voucherId.toString()).gauges()
+                    .forEach(meterRegistry::remove);
+            lastSnapshots.remove(voucherId);
+            return true;
+        });
+    }
 }
@@ -6,25 +6,18 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 
-import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 
-import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
@@ -75,155 +68,31 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /*
+     * 以下為緩存穿透及擊穿的不同解法, 讀寫皆經由 CacheClient, 與其緩存格式一致
+     */
     public Shop queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 從redis查詢店鋪緩存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判斷查詢到的是否是空字串
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 緩存不存在, 根據id查詢mySQL
-        Shop shop = getById(id);
-        if (shop == null) {
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL,
-                    TimeUnit.MINUTES);
-            return null;
-        }
-
-        // mySQL存在, 寫入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL,
-                TimeUnit.MINUTES);
-
-        return shop;
+        return cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     public Shop queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 從redis查詢店鋪緩存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        if (StrUtil.isNotBlank(shopJson)) {
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        // 判斷查詢到的是否是空字串
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 獲取互斥鎖
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = trylock(lockKey);
-
-            // 判斷是否獲取成功
-            if (!isLock) {
-                // 失敗, 休眠並重試
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            // 成功, 查詢資料庫
-            shop = getById(id);
-
-            // 預防緩存穿透
-            if (shop == null) {
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL,
-                        TimeUnit.MINUTES);
-                return null;
-            }
-
-            // mySQL存在, 寫入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL,
-                    TimeUnit.MINUTES);
-
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 釋放鎖
-            unlock(lockKey);
-        }
-
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById,
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     public Shop queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 從redis查詢店鋪緩存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // redis沒有緩存, 直接返回null
-        if (StrUtil.isBlank(shopJson)) {
-            return null;
-        }
-
-        // 命中, 先把json反序列化為對象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-
-        // 判斷是否過期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 未過期, 直接返回店鋪資訊
-            return shop;
-        }
-
-        // 已過期, 需要重建緩存
-        // 獲取互斥鎖
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-
-        boolean isLock = trylock(lockKey);
-
-        // 判斷是否獲取成功
-        if (isLock) {
-            // 成功, 開啟獨立線程, 重建緩存
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建緩存
-                    this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 釋放鎖
-                    unlock(lockKey);
-                }
-            });
-        }
-
-        // 失敗, 直接返回過期的店鋪資訊
-        return shop;
-    }
-
-    private boolean trylock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
+        // 需先以 saveShop2Redis 預熱, 過期後由 CacheClient 開啟獨立線程重建
+        return cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L,
+                TimeUnit.SECONDS);
     }
 
     public void saveShop2Redis(Long id, Long expireSeconds) {
         // 查詢店鋪資料
         Shop shop = getById(id);
 
-        // 封裝邏輯過期時間
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-
-        // 寫入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 封裝邏輯過期時間並寫入redis, 同時通知各節點移除本地緩存
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -237,8 +106,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 更新 mySQL 資料庫
         updateById(shop);
 
-        // 刪除緩存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 刪除緩存, 並通知各節點移除本地緩存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
 
         return Result.ok();
     }
@@ -2,41 +2,94 @@ package com.hmdp.service.impl;
 
 import com.hmdp.dto.Result;
 
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderIdDecoder;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderTableRouter;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillAdmissionLimiter;
+import com.hmdp.utils.SeckillLocalStock;
+import com.hmdp.utils.SeckillStateCache;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.StreamArchiver;
 import com.hmdp.utils.UserHolder;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.util.NumberUtil;
+import cn.hutool.core.util.StrUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import lombok.extern.slf4j.Slf4j;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.Consumer;
 import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
 import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
 import org.springframework.data.redis.connection.stream.StreamOffset;
 import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 /**
  * <p>
@@ -49,7 +102,7 @@ import org.springframework.transaction.annotation.Transactional;
 @Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder>
-        implements IVoucherOrderService {
+        implements IVoucherOrderService, SmartLifecycle {
 
     @Resource
     private RedisIdWorker redisIdWorker;
@@ -63,90 +116,991 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStateCache seckillStateCache;
+
+    @Resource
+    private SeckillAdmissionLimiter seckillAdmissionLimiter;
+
+    @Resource
+    private StreamArchiver streamArchiver;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private SeckillLocalStock seckillLocalStock;
+
+    @Resource
+    private OrderJournal orderJournal;
+
+    @Resource
+    private OrderTableRouter orderTableRouter;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /*
+     * 是否啟用批次消費: 一次讀取多筆訂單, 依優惠券合併扣庫存並批量寫入
+     */
+    @Value("${hmdp.seckill.order.batch-enabled:false}")
+    private boolean batchEnabled;
+
+    /*
+     * 每批最多讀取的訂單筆數
+     */
+    @Value("${hmdp.seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /*
+     * 湊滿一批的最長等待時間
+     */
+    @Value("${hmdp.seckill.order.batch-linger:200ms}")
+    private Duration batchLinger;
+
+    /*
+     * 消費者名稱, 每個實例需唯一, 未設定時以 應用名-pid@host 產生
+     */
+    @Value("${hmdp.seckill.order.consumer-name:}")
+    private String consumerName;
+
+    @Value("${spring.application.name:hmdp}")
+    private String applicationName;
+
+    /*
+     * 掃描其他消費者pending list的間隔
+     */
+    @Value("${hmdp.seckill.order.reclaim-interval:30s}")
+    private Duration reclaimInterval;
+
+    /*
+     * pending訊息閒置超過此時間, 視為原消費者已失效並接手處理
+     */
+    @Value("${hmdp.seckill.order.reclaim-min-idle:60s}")
+    private Duration reclaimMinIdle;
+
+    /*
+     * 沒有pending訊息且閒置超過此時間的消費者, 從消費者組中移除
+     */
+    @Value("${hmdp.seckill.order.consumer-expire:1h}")
+    private Duration consumerExpire;
+
+    /*
+     * 訂單消息Queue分片數, 由seckill_batch.lua依voucherId選擇分片, 每個分片一個消費線程
+     */
+    @Value("${hmdp.seckill.order.stream-shards:1}")
+    private int streamShards;
+
+    /*
+     * 訂單狀態保留時間
+     */
+    @Value("${hmdp.seckill.order.status-ttl:1d}")
+    private Duration orderStatusTtl;
+
+    /*
+     * 訂單寫入模式: lock 以Redisson鎖加查詢保證一人一單; idempotent 以唯一索引加INSERT IGNORE保證
+     */
+    @Value("#{'${hmdp.seckill.order.persist-mode:lock}' == 'idempotent'}")
+    private boolean idempotentPersist;
+
+    /*
+     * 訂單寫入線程數, 依userId分派, 0 代表由讀取線程直接寫入
+     */
+    @Value("${hmdp.seckill.order.workers:0}")
+    private int workers;
+
+    /*
+     * 每個寫入線程的佇列容量, 滿了會阻塞讀取線程
+     */
+    @Value("${hmdp.seckill.order.worker-queue-capacity:1024}")
+    private int workerQueueCapacity;
+
+    /*
+     * 訊息最多投遞次數, 超過後移到死信Queue
+     */
+    @Value("${hmdp.seckill.order.max-retries:5}")
+    private int maxRetries;
+
+    /*
+     * 重試退避的基礎時間與上限, 上限應小於 reclaim-min-idle, 避免退避中的訊息被其他節點接手
+     */
+    @Value("${hmdp.seckill.order.retry-backoff:1s}")
+    private Duration retryBackoff;
+
+    @Value("${hmdp.seckill.order.retry-backoff-max:30s}")
+    private Duration retryBackoffMax;
+
+    /*
+     * 停機時等待處理中訂單完成的最長時間, 應小於 spring.lifecycle.timeout-per-shutdown-phase
+     */
+    @Value("${hmdp.seckill.order.shutdown-timeout:20s}")
+    private Duration shutdownTimeout;
+
+    /*
+     * 是否以本地庫存租約下單, 各節點向Redis租借一段庫存後在本地扣減
+     */
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean leaseEnabled;
+
+    /*
+     * 每次從本地訂單日誌重放的筆數
+     */
+    @Value("${hmdp.seckill.journal.replay-batch:500}")
+    private int journalReplayBatch;
+
+    /*
+     * 一次請求最多搶購的優惠券數量
+     */
+    @Value("${hmdp.seckill.batch.max-vouchers:10}")
+    private int maxBatchVouchers;
+
+    /*
+     * 清理消息Queue前, 是否先將要刪除的訊息寫入本地檔案留存
+     */
+    @Value("${hmdp.seckill.order.archive.enabled:false}")
+    private boolean archiveEnabled;
+
+    /*
+     * 每次XRANGE讀取並寫入檔案的筆數
+     */
+    @Value("${hmdp.seckill.order.archive.batch-size:1000}")
+    private int archiveBatchSize;
+
+    /*
+     * 未付款訂單的付款期限, 到期後自動取消並歸還庫存, 0 代表不自動取消
+     */
+    @Value("${hmdp.seckill.order.pay-timeout:0}")
+    private Duration payTimeout;
+
+    /*
+     * 每次從延遲Queue領取的到期訂單數
+     */
+    @Value("${hmdp.seckill.order.pay-timeout-batch:200}")
+    private int payTimeoutBatch;
+
+    /*
+     * 領取後的可見逾時, 處理中的節點當機時, 到期後由其他節點重新領取
+     */
+    @Value("${hmdp.seckill.order.pay-timeout-visibility:60s}")
+    private Duration payTimeoutVisibility;
+
+    /*
+     * 預先建立之後幾個月的訂單分表
+     */
+    @Value("${hmdp.order.partition.ahead-months:3}")
+    private int partitionAheadMonths;
+
+    /*
+     * 秒殺券的開始與結束時間, 決定一人一單要檢查的分表
+     * 秒殺時間可能在資料庫中被修改, 快取一分鐘後重新查詢
+     */
+    private final Cache<Long, SeckillVoucher> seckillVoucherWindows = Caffeine.newBuilder()
+            .maximumSize(10000)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
+
+    /*
+     * 依時間查詢訂單時每次最多返回的筆數
+     */
+    @Value("${hmdp.order.query.max-count:1000}")
+    private int maxQueryCount;
+
+    /*
+     * 訊息最近一次的失敗原因, 移到死信Queue時一併記錄
+     */
+    private final Map<String, String> failureReasons = new ConcurrentHashMap<>();
+
+    /*
+     * 單張及多張優惠券共用同一個腳本, 單張時只傳一張
+     */
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+    static {
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("seckill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> JOURNAL_SCRIPT;
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        JOURNAL_SCRIPT = new DefaultRedisScript<>();
+        JOURNAL_SCRIPT.setLocation(new ClassPathResource("seckill_journal.lua"));
+        JOURNAL_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<List> TIMEOUT_CLAIM_SCRIPT;
+    static {
+        TIMEOUT_CLAIM_SCRIPT = new DefaultRedisScript<>();
+        TIMEOUT_CLAIM_SCRIPT.setLocation(new ClassPathResource("seckill_timeout_claim.lua"));
+        TIMEOUT_CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> TIMEOUT_RESTORE_SCRIPT;
+    static {
+        TIMEOUT_RESTORE_SCRIPT = new DefaultRedisScript<>();
+        TIMEOUT_RESTORE_SCRIPT.setLocation(new ClassPathResource("seckill_timeout_restore.lua"));
+        TIMEOUT_RESTORE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final String QUEUE_NAME = "stream.orders";
+    private static final String GROUP_NAME = "g1";
+    private static final String DEAD_LETTER_QUEUE_NAME = "stream.orders.dlq";
+
+    private static final String BATCH_ABORTED_MESSAGE = "其他優惠券搶購失敗，未下單";
+
+    private static final String ORDER_STATUS_QUEUED = "queued";
+    private static final String ORDER_STATUS_CREATED = "created";
+    private static final String ORDER_STATUS_FAILED = "failed";
+    private static final String ORDER_STATUS_CANCELLED = "cancelled";
+
+    /*
+     * 訂單狀態 1: 未支付 4: 已取消
+     */
+    private static final int ORDER_UNPAID = 1;
+    private static final int ORDER_CANCELLED = 4;
+
+    private ScheduledExecutorService seckillReclaimExecutor;
+
+    private ExecutorService seckillOrderExecutor;
+
+    private ExecutorService seckillWorkerExecutor;
+
+    private final List<VoucherOrderHandler> handlers = new ArrayList<>();
+
+    private final List<OrderWorker> orderWorkers = new ArrayList<>();
+
+    /*
+     * 消費者是否運行中, 停止後讀取線程處理完當前這批即退出
+     */
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        if (StrUtil.isBlank(consumerName)) {
+            consumerName = applicationName + "-" + ManagementFactory.getRuntimeMXBean().getName();
+        }
+        log.info("訂單消費者名稱: {}", consumerName);
+        running = true;
+        handlers.clear();
+        orderWorkers.clear();
+
+        // 每個分片一個消費線程
+        seckillOrderExecutor = Executors.newFixedThreadPool(streamShards);
+
+        // 訂單寫入線程, 同一個用戶的訂單固定由同一個線程依序處理
+        if (workers > 0) {
+            seckillWorkerExecutor = Executors.newFixedThreadPool(workers);
+            for (int i = 0; i < workers; i++) {
+                OrderWorker worker = new OrderWorker(i);
+                orderWorkers.add(worker);
+                seckillWorkerExecutor.submit(worker);
+            }
+        }
+
+        for (int shard = 0; shard < streamShards; shard++) {
+            VoucherOrderHandler handler = new VoucherOrderHandler(queueName(shard));
+            handlers.add(handler);
+            seckillOrderExecutor.submit(handler);
+        }
+        // 已讀取但尚未處理完的批次數
+        meterRegistry.gauge("seckill.order.inflight", handlers,
+                list -> list.stream().mapToInt(h -> h.inFlight.get()).sum());
+
+        seckillReclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        seckillReclaimExecutor.scheduleWithFixedDelay(this::reclaimPendingOrders,
+                reclaimInterval.toMillis(), reclaimInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        drain();
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        running = false;
+        // 非同步等待處理完成, 讓其他bean可以同時停止
+        Thread thread = new Thread(() -> {
+            try {
+                drain();
+            } finally {
+                callback.run();
+            }
+        }, "seckill-order-drain");
+        thread.start();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /*
+     * 停止讀取後, 等待已讀取的訂單寫入並ACK, 超過時間未完成的訊息留在pending list由其他節點接手
+     */
+    private void drain() {
+        long deadline = System.currentTimeMillis() + shutdownTimeout.toMillis();
+        log.info("停止讀取訂單, 等待處理中的訂單完成, 最多 {} 秒", shutdownTimeout.getSeconds());
+
+        // 不再接手其他消費者的訊息
+        seckillReclaimExecutor.shutdownNow();
+
+        // 讀取線程處理完當前這批後退出, 寫入線程在讀取線程結束且佇列清空後退出
+        seckillOrderExecutor.shutdown();
+        if (seckillWorkerExecutor != null) {
+            seckillWorkerExecutor.shutdown();
+        }
+
+        long lastReport = 0;
+        while (!isDrained()) {
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                log.warn("等待逾時, 尚有 {} 批訂單未處理完, 將由其他節點從pending list接手", inFlightCount());
+                seckillOrderExecutor.shutdownNow();
+                if (seckillWorkerExecutor != null) {
+                    seckillWorkerExecutor.shutdownNow();
+                }
+                return;
+            }
+            // 每秒回報一次進度
+            if (now - lastReport >= 1000) {
+                log.info("等待訂單處理完成, 讀取線程: {}, 處理中: {} 批, 佇列中: {} 批",
+                        seckillOrderExecutor.isTerminated() ? "已停止" : "處理中", inFlightCount(), queuedCount());
+                lastReport = now;
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        log.info("訂單消費者已停止, 處理中的訂單皆已完成");
+    }
+
+    private boolean isDrained() {
+        return seckillOrderExecutor.isTerminated()
+                && (seckillWorkerExecutor == null || seckillWorkerExecutor.isTerminated());
+    }
+
+    private int inFlightCount() {
+        return handlers.stream().mapToInt(h -> h.inFlight.get()).sum();
+    }
+
+    private int queuedCount() {
+        return orderWorkers.stream().mapToInt(w -> w.queue.size()).sum();
+    }
+
+    /*
+     * 等待 milliseconds, 被中斷時返回false
+     */
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /*
+     * 分片數為1時沿用 stream.orders, 否則為 stream.orders.{n}
+     */
+    private String queueName(int shard) {
+        return streamShards > 1 ? QUEUE_NAME + "." + shard : QUEUE_NAME;
+    }
+
+    private void createGroupIfAbsent(String queueName) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(queueName.getBytes(StandardCharsets.UTF_8), GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 消費者組已存在
+            if (!ExceptionUtil.getRootCauseMessage(e).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void reclaimPendingOrders() {
+        for (VoucherOrderHandler handler : handlers) {
+            try {
+                reclaimPendingOrders(handler);
+            } catch (Exception e) {
+                log.error("接手pending訂單異常, queue: {}", handler.queueName, e);
+            }
+        }
+    }
+
+    private void reclaimPendingOrders(VoucherOrderHandler handler) {
+        String queueName = handler.queueName;
+
+        // 查詢消費者組的pending list XPENDING stream.orders g1 - + 100
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                .pending(queueName, GROUP_NAME, Range.unbounded(), 100);
+
+        // 篩選其他消費者閒置過久的訊息
+        RecordId[] ids = pendingMessages.stream()
+                .filter(p -> !consumerName.equals(p.getConsumerName()))
+                .filter(p -> p.getElapsedTimeSinceLastDelivery().compareTo(reclaimMinIdle) >= 0)
+                .map(PendingMessage::getId)
+                .toArray(RecordId[]::new);
+
+        if (ids.length > 0) {
+            // 接手訊息 XCLAIM stream.orders g1 consumer min-idle-time id...
+            List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream()
+                    .claim(queueName, GROUP_NAME, consumerName, reclaimMinIdle, ids);
+            if (!claimed.isEmpty()) {
+                log.info("接手 {} 筆閒置的pending訂單, queue: {}", claimed.size(), queueName);
+                handler.pendingClaimed.set(true);
+            }
+        }
+
+        // 移除沒有pending訊息且閒置過久的消費者
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(queueName, GROUP_NAME);
+        consumers.forEach(c -> {
+            if (!consumerName.equals(c.consumerName()) && c.pendingCount() == 0
+                    && c.idleTimeMs() >= consumerExpire.toMillis()) {
+                stringRedisTemplate.opsForStream().deleteConsumer(queueName,
+                        Consumer.from(GROUP_NAME, c.consumerName()));
+                log.info("移除失效的消費者 {}, queue: {}", c.consumerName(), queueName);
+            }
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.trim-interval:60000}")
+    public void trimOrderStreamsTask() {
+        if (!running) {
+            return;
+        }
+
+        // 多個節點同時只需一個執行
+        RLock lock = redissonClient.getLock("lock:seckill:trim");
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            for (int shard = 0; shard < streamShards; shard++) {
+                String queueName = queueName(shard);
+                try {
+                    trimOrderStream(queueName);
+                } catch (Exception e) {
+                    log.error("清理訂單消息Queue異常, queue: {}", queueName, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * 刪除已ACK的訊息, 保留消費者組尚未投遞及尚未ACK的訊息
+     */
+    private void trimOrderStream(String queueName) {
+        // 1. 消費者組最後投遞的訊息 XINFO GROUPS stream.orders
+        String lastDelivered = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                .filter(g -> GROUP_NAME.equals(g.groupName()))
+                .map(StreamInfo.XInfoGroup::lastDeliveredId)
+                .findFirst()
+                .orElse(null);
+        if (lastDelivered == null || "0-0".equals(lastDelivered)) {
+            return;
+        }
+
+        // 2. 尚未ACK的最小訊息 XPENDING stream.orders g1, 兩者取小, 小於此id的訊息都已ACK
+        String minId = lastDelivered;
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(queueName, GROUP_NAME);
+        if (summary != null && summary.getTotalPendingMessages() > 0
+                && compareRecordIds(summary.minMessageId(), minId) < 0) {
+            minId = summary.minMessageId();
+        }
+
+        // 3. 先留存要刪除的訊息, 寫入失敗時不刪除
+        if (archiveEnabled && !archiveOrderStream(queueName, minId)) {
+            return;
+        }
+
+        // 4. 近似刪除, 以整個節點為單位釋放記憶體 XTRIM stream.orders MINID ~ id
+        String trimId = minId;
+        Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute(
+                "XTRIM", queueName.getBytes(StandardCharsets.UTF_8), "MINID".getBytes(StandardCharsets.UTF_8),
+                "~".getBytes(StandardCharsets.UTF_8), trimId.getBytes(StandardCharsets.UTF_8)));
+        if (trimmed != null && trimmed > 0) {
+            meterRegistry.counter("seckill.order.stream.trimmed", "queue", queueName).increment(trimmed);
+            log.debug("清理 {} 筆已處理的訂單訊息, queue: {}, minId: {}", trimmed, queueName, trimId);
+        }
+    }
+
+    /*
+     * 將上次留存位置到minId之間的訊息寫入本地檔案, 全部寫入成功才返回true
+     */
+    private boolean archiveOrderStream(String queueName, String minId) {
+        Object archived = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_STREAM_ARCHIVE_KEY, queueName);
+        String cursor = archived == null ? "0-0" : archived.toString();
+
+        while (true) {
+            // XRANGE stream.orders (cursor (minId COUNT n
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().range(queueName,
+                    Range.of(Range.Bound.exclusive(cursor), Range.Bound.exclusive(minId)),
+                    RedisZSetCommands.Limit.limit().count(archiveBatchSize));
+            if (list == null || list.isEmpty()) {
+                return true;
+            }
+
+            try {
+                streamArchiver.append(queueName, list);
+            } catch (IOException e) {
+                log.error("留存訂單訊息失敗, 暫不清理, queue: {}", queueName, e);
+                return false;
+            }
+
+            // 記錄留存位置, 近似刪除未刪掉的訊息不會重複寫入
+            cursor = list.get(list.size() - 1).getId().getValue();
+            stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_STREAM_ARCHIVE_KEY, queueName, cursor);
+            meterRegistry.counter("seckill.order.stream.archived", "queue", queueName).increment(list.size());
+
+            if (list.size() < archiveBatchSize) {
+                return true;
+            }
+        }
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /*
+     * 比較訊息id, 格式為 毫秒時間戳-序號
+     */
+    private static int compareRecordIds(String a, String b) {
+        int i = a.indexOf('-');
+        int j = b.indexOf('-');
+        int result = Long.compare(Long.parseLong(a.substring(0, i)), Long.parseLong(b.substring(0, j)));
+        if (result != 0) {
+            return result;
+        }
+        return Long.compare(Long.parseLong(a.substring(i + 1)), Long.parseLong(b.substring(j + 1)));
+    }
+
+    /*
+     * 取消逾期未付款的訂單: 從延遲Queue領取到期的訂單, 只查詢這些訂單, 不掃描訂單表
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order.pay-timeout-poll-interval:1000}")
+    public void cancelUnpaidOrdersTask() {
+        if (!running || payTimeout.isZero() || seckillLocalStock.isRedisDown()) {
+            return;
+        }
+
+        try {
+            int count;
+            do {
+                // 多個節點同時領取時, 每筆到期訂單只會被一個節點領到
+                List<?> members = stringRedisTemplate.execute(TIMEOUT_CLAIM_SCRIPT, Collections.emptyList(),
+                        String.valueOf(payTimeoutBatch), String.valueOf(payTimeoutVisibility.toMillis()));
+                count = members == null ? 0 : members.size();
+                if (count > 0) {
+                    cancelUnpaidOrders(members);
+                }
+            } while (count == payTimeoutBatch && running);
+        } catch (Exception e) {
+            log.error("取消逾期未付款訂單異常", e);
+        }
+    }
+
+    private void cancelUnpaidOrders(List<?> members) {
+        // 1. 解析成員 orderId:voucherId:userId, 一次查詢這批訂單
+        Map<Long, String> timers = new LinkedHashMap<>(members.size());
+        for (Object member : members) {
+            timers.put(Long.valueOf(StrUtil.subBefore(member.toString(), ":", false)), member.toString());
+        }
+        Map<Long, VoucherOrder> orders = new HashMap<>(timers.size());
+        Map<String, List<Long>> tables = timers.keySet().stream()
+                .collect(Collectors.groupingBy(orderTableRouter::tableOf));
+        for (Map.Entry<String, List<Long>> table : tables.entrySet()) {
+            orderTableRouter.route(table.getKey(), () -> listByIds(table.getValue()))
+                    .forEach(o -> orders.put(o.getId(), o));
+        }
+
+        Set<Long> restored = new HashSet<>();
+        for (Map.Entry<Long, String> entry : timers.entrySet()) {
+            Long orderId = entry.getKey();
+            String member = entry.getValue();
+            String[] fields = member.split(":");
+            Long voucherId = Long.valueOf(fields[1]);
+            try {
+                VoucherOrder voucherOrder = orders.get(orderId);
+
+                // 2. 訂單尚未寫入資料庫, 仍在消息Queue中時等可見逾時後再檢查, 其他情況不需取消
+                if (voucherOrder == null) {
+                    Object status = stringRedisTemplate.opsForHash().get(orderStatusKey(orderId), orderId.toString());
+                    if (status == null || !ORDER_STATUS_QUEUED.equals(status.toString())) {
+                        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_TIMEOUT_KEY, member);
+                    }
+                    continue;
+                }
+
+                // 3. 未付款時取消, 已付款等其他狀態直接移出延遲Queue
+                int status = voucherOrder.getStatus() == null ? ORDER_UNPAID : voucherOrder.getStatus();
+                if (status == ORDER_UNPAID && !proxy.cancelVoucherOrder(orderId, voucherId)) {
+                    // 取消前已付款
+                    stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_TIMEOUT_KEY, member);
+                    continue;
+                }
+                if (status != ORDER_UNPAID && status != ORDER_CANCELLED) {
+                    stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_ORDER_TIMEOUT_KEY, member);
+                    continue;
+                }
+
+                // 4. 資料庫已取消, 歸還Redis庫存 (購買用戶保留, 不可再次下單); 上次歸還前中斷時 (status為4) 在此補做
+                Long result = stringRedisTemplate.execute(TIMEOUT_RESTORE_SCRIPT, Collections.emptyList(),
+                        member, voucherId.toString(), orderId.toString(),
+                        orderStatusKey(orderId), String.valueOf(orderStatusTtl.getSeconds()));
+                if (result != null && result == 1) {
+                    restored.add(voucherId);
+                    meterRegistry.counter("seckill.order.cancelled", "voucherId", voucherId.toString()).increment();
+                }
+            } catch (Exception e) {
+                // 保留在延遲Queue中, 可見逾時後重試
+                log.error("取消逾期未付款訂單失敗, orderId: {}", orderId, e);
+            }
+        }
+
+        // 5. 有庫存歸還, 清除各節點的售罄標記
+        for (Long voucherId : restored) {
+            seckillStateCache.clear(voucherId);
+        }
+        if (!restored.isEmpty()) {
+            log.info("取消 {} 張優惠券的逾期未付款訂單", restored.size());
+        }
+    }
+
+    @Override
+    @Transactional
+    public boolean cancelVoucherOrder(Long orderId, Long voucherId) {
+        // 只取消未付款的訂單, 與付款並發時只有一方成功
+        boolean success = orderTableRouter.route(orderId, () -> update()
+                .set("status", ORDER_CANCELLED)
+                .eq("id", orderId)
+                .eq("status", ORDER_UNPAID).update());
+        if (!success) {
+            return false;
+        }
+
+        // 歸還資料庫庫存
+        seckillVoucherService.update()
+                .setSql("stock = stock + 1")
+                .eq("voucher_id", voucherId).update();
+        return true;
+    }
+
+    private class VoucherOrderHandler implements Runnable {
+        private final String queueName;
+
+        /*
+         * 接手其他消費者的訊息後, 通知handler處理自己的pending list
+         */
+        private final AtomicBoolean pendingClaimed = new AtomicBoolean(true);
+
+        /*
+         * 已分派給寫入線程但尚未處理完的任務數
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        VoucherOrderHandler(String queueName) {
+            this.queueName = queueName;
+        }
+
+        @Override
+        public void run() {
+            // 等待Redis可用並建立消費者組
+            if (!awaitReady()) {
+                return;
+            }
+
+            long backoff = retryBackoff.toMillis();
+            while (running) {
+                try {
+                    // 處理自己pending list中的訊息 (啟動時遺留或從其他消費者接手)
+                    // 寫入線程仍在處理時先不讀取, 避免同一筆訊息被處理兩次
+                    if (inFlight.get() == 0 && pendingClaimed.compareAndSet(true, false)) {
+                        handlePendingList();
+                    }
+
+                    // 從消息Queue中獲取訂單訊息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 stream.orders
+                    List<MapRecord<String, Object, Object>> list = batchEnabled
+                            ? readBatch()
+                            : read(1, Duration.ofSeconds(2));
+                    backoff = retryBackoff.toMillis();
+
+                    // 判斷是否有訊息
+                    if (list == null || list.isEmpty()) {
+                        // 無訊息，繼續下一次循環
+                        continue;
+                    }
+
+                    // 有訊息，創建訂單並ACK確認
+                    dispatch(list);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    log.error("處理訂單異常", e);
+                    // 下一輪處理pending list
+                    pendingClaimed.set(true);
+                    // Redis不可用時退避, 避免不斷重試
+                    if (!pause(backoff)) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, retryBackoffMax.toMillis());
+                }
+            }
+        }
+
+        private boolean awaitReady() {
+            long backoff = retryBackoff.toMillis();
+            while (running) {
+                try {
+                    // 建立消費者組 XGROUP CREATE stream.orders g1 0 MKSTREAM
+                    createGroupIfAbsent(queueName);
+                    return true;
+                } catch (Exception e) {
+                    log.warn("消費者組尚未就緒, {} 毫秒後重試, queue: {}, 原因: {}", backoff, queueName,
+                            ExceptionUtil.getRootCauseMessage(e));
+                    if (!pause(backoff)) {
+                        return false;
+                    }
+                    backoff = Math.min(backoff * 2, retryBackoffMax.toMillis());
+                }
+            }
+            return false;
+        }
+
+        private void dispatch(List<MapRecord<String, Object, Object>> records) throws InterruptedException {
+            if (orderWorkers.isEmpty()) {
+                handleRecords(records);
+                return;
+            }
+
+            // 依userId分組, 同一個用戶固定分派到同一個寫入線程
+            Map<Integer, List<MapRecord<String, Object, Object>>> partitions = new HashMap<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                long userId = Long.parseLong(record.getValue().get("userId").toString());
+                int index = Math.floorMod(Long.hashCode(userId), orderWorkers.size());
+                partitions.computeIfAbsent(index, k -> new ArrayList<>()).add(record);
+            }
 
-    @PostConstruct
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
+            for (Map.Entry<Integer, List<MapRecord<String, Object, Object>>> entry : partitions.entrySet()) {
+                inFlight.incrementAndGet();
+                orderWorkers.get(entry.getKey()).queue.put(new OrderTask(this, entry.getValue()));
+            }
+        }
 
-    private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private List<MapRecord<String, Object, Object>> read(int count, Duration block) {
+            return stringRedisTemplate.opsForStream().read(
+                    Consumer.from(GROUP_NAME, consumerName),
+                    StreamReadOptions.empty().count(count).block(block),
+                    StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+        }
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 從消息Queue中獲取訂單訊息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 stream.orders
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed()));
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
 
-                    // 判斷是否有訊息
-                    if (list == null || list.isEmpty()) {
-                        // 無訊息，繼續下一次循環
-                        continue;
-                    }
+            // 第一次讀取阻塞等待新訊息
+            List<MapRecord<String, Object, Object>> list = read(batchSize, Duration.ofSeconds(2));
+            if (list == null || list.isEmpty()) {
+                return batch;
+            }
+            batch.addAll(list);
 
-                    // 有訊息，解析訊息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+            // 未湊滿一批, 在linger時間內繼續讀取
+            long deadline = System.currentTimeMillis() + batchLinger.toMillis();
+            while (batch.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                // BLOCK 0 代表無限等待, 剩餘時間不足1ms直接結束
+                if (remaining < 1) {
+                    break;
+                }
+                list = read(batchSize - batch.size(), Duration.ofMillis(remaining));
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
 
-                    // 創建訂單
-                    handleVoucherOrder(voucherOrder);
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            if (records.size() > 1) {
+                // 解析訊息
+                List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+                for (MapRecord<String, Object, Object> record : records) {
+                    voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                }
 
-                    // ACK確認
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                // 批量創建訂單
+                boolean success = false;
+                try {
+                    success = proxy.createVoucherOrders(voucherOrders);
                 } catch (Exception e) {
-                    log.error("處理訂單異常", e);
-                    handlePendingList();
+                    log.error("批量創建訂單異常", e);
+                }
+
+                if (success) {
+                    // 更新訂單狀態
+                    markOrdersCreated(voucherOrders);
+                    // 整批ACK確認
+                    RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, ids);
+                    return;
                 }
+                // 批量失敗, 退回逐筆處理, 未ACK的訊息留在pending list
+            }
+
+            for (MapRecord<String, Object, Object> record : records) {
+                handleRecord(record);
             }
         }
 
+        private void handleRecord(MapRecord<String, Object, Object> record) {
+            // 解析訊息
+            Map<Object, Object> values = record.getValue();
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+
+            // 創建訂單
+            Result result = handleVoucherOrder(voucherOrder);
+
+            // 更新訂單狀態
+            updateOrderStatus(voucherOrder.getId(), result.getSuccess() ? ORDER_STATUS_CREATED
+                    : ORDER_STATUS_FAILED + ":" + result.getErrorMsg());
+
+            // ACK確認
+            stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, record.getId());
+        }
+
         private void handlePendingList() {
-            while (true) {
+            // 查詢自己的pending list及投遞次數 XPENDING stream.orders g1 - + 100 consumer
+            // XPENDING 不會增加投遞次數, 可以用來判斷是否到了重試時間
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(queueName,
+                    Consumer.from(GROUP_NAME, consumerName), Range.unbounded(), 100);
+            if (pendingMessages.isEmpty()) {
+                return;
+            }
+
+            for (PendingMessage pending : pendingMessages) {
+                RecordId id = pending.getId();
+                long deliveries = pending.getTotalDeliveryCount();
+
+                // 超過重試次數, 移到死信Queue
+                if (deliveries > maxRetries) {
+                    moveToDeadLetter(id, deliveries);
+                    continue;
+                }
+
+                // 指數退避: 距離上次投遞的時間未達 base * 2^(n-1), 先跳過, 不阻塞其他訂單
+                long backoff = Math.min(retryBackoff.toMillis() << Math.min(deliveries - 1, 20),
+                        retryBackoffMax.toMillis());
+                if (pending.getElapsedTimeSinceLastDelivery().toMillis() < backoff) {
+                    pendingClaimed.set(true);
+                    continue;
+                }
+
+                // 重新投遞給自己 (投遞次數+1) XCLAIM stream.orders g1 consumer 0 id
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream()
+                        .claim(queueName, GROUP_NAME, consumerName, Duration.ZERO, id);
+                if (list == null || list.isEmpty()) {
+                    // 訊息已不存在, 直接ACK
+                    stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, id);
+                    continue;
+                }
+
                 try {
-                    // 從pending list中獲取訂單訊息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 stream.orders
-                    // 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0")));
+                    // 創建訂單並ACK確認
+                    handleRecord(list.get(0));
+                    failureReasons.remove(id.getValue());
+                } catch (Exception e) {
+                    log.error("處理pending list訂單異常, id: {}, 第 {} 次", id, deliveries + 1, e);
+                    failureReasons.put(id.getValue(), ExceptionUtil.getRootCauseMessage(e));
+                    pendingClaimed.set(true);
+                }
+            }
+        }
 
-                    // 判斷是否有訊息
-                    if (list == null || list.isEmpty()) {
-                        // 無訊息，結束循環
-                        break;
-                    }
+        private void moveToDeadLetter(RecordId id, long deliveries) {
+            List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().range(queueName,
+                    Range.closed(id.getValue(), id.getValue()));
+            String reason = failureReasons.remove(id.getValue());
+            if (reason == null) {
+                reason = "超過重試次數";
+            }
+
+            if (list != null && !list.isEmpty()) {
+                Map<Object, Object> values = list.get(0).getValue();
 
-                    // 有訊息，解析訊息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+                // 保留原訊息及失敗原因 XADD stream.orders.dlq * ...
+                Map<String, String> deadLetter = new HashMap<>();
+                values.forEach((k, v) -> deadLetter.put(k.toString(), v.toString()));
+                deadLetter.put("source", queueName);
+                deadLetter.put("sourceId", id.getValue());
+                deadLetter.put("deliveries", String.valueOf(deliveries));
+                deadLetter.put("reason", reason);
+                stringRedisTemplate.opsForStream().add(DEAD_LETTER_QUEUE_NAME, deadLetter);
 
-                    // 創建訂單
-                    handleVoucherOrder(voucherOrder);
+                Object orderId = values.get("id");
+                if (orderId != null) {
+                    updateOrderStatus(Long.valueOf(orderId.toString()), ORDER_STATUS_FAILED + ":" + reason);
+                }
+            }
+
+            // 從原Queue的pending list移除
+            stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, id);
+            log.error("訂單訊息移至死信Queue, queue: {}, id: {}, 投遞 {} 次, 原因: {}", queueName, id, deliveries, reason);
+        }
+    }
+
+    private static class OrderTask {
+        private final VoucherOrderHandler handler;
+        private final List<MapRecord<String, Object, Object>> records;
+
+        OrderTask(VoucherOrderHandler handler, List<MapRecord<String, Object, Object>> records) {
+            this.handler = handler;
+            this.records = records;
+        }
+    }
+
+    private class OrderWorker implements Runnable {
+        private final BlockingQueue<OrderTask> queue = new ArrayBlockingQueue<>(workerQueueCapacity);
+        private final Counter processed;
+
+        OrderWorker(int index) {
+            // 佇列深度與處理筆數
+            Tags tags = Tags.of("worker", String.valueOf(index));
+            meterRegistry.gaugeCollectionSize("seckill.order.worker.queue", tags, queue);
+            processed = meterRegistry.counter("seckill.order.worker.processed", tags);
+        }
+
+        @Override
+        public void run() {
+            // 停止時讀取線程全部結束且佇列清空才退出
+            while (!seckillOrderExecutor.isTerminated() || !queue.isEmpty()) {
+                OrderTask task;
+                try {
+                    task = queue.poll(200, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (task == null) {
+                    continue;
+                }
 
-                    // ACK確認
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                try {
+                    task.handler.handleRecords(task.records);
+                    processed.increment(task.records.size());
                 } catch (Exception e) {
-                    log.error("處理pending list訂單異常", e);
-                    handlePendingList();
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException InterruptedException) {
-                        InterruptedException.printStackTrace();
-                    }
+                    log.error("處理訂單異常", e);
+                    // 未ACK的訊息留在pending list, 由讀取線程重新處理
+                    task.handler.pendingClaimed.set(true);
+                } finally {
+                    task.handler.inFlight.decrementAndGet();
                 }
             }
         }
@@ -173,7 +1127,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * }
      * }
      */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    private Result handleVoucherOrder(VoucherOrder voucherOrder) {
+        if (idempotentPersist || !orderWorkers.isEmpty()) {
+            // 由唯一索引保證一人一單, 或同一用戶已固定由同一寫入線程依序處理, 不需要分布式鎖
+            return proxy.createVoucherOrder(voucherOrder);
+        }
+
         // 獲取userid
         Long userId = voucherOrder.getUserId();
 
@@ -186,47 +1145,421 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!isLock) {
             // 獲取鎖失敗，返回錯誤或重試
             log.error("不允許重複下單");
-            return;
+            return Result.fail("不允許重複下單");
         }
 
         try {
             // 返回訂單id
-            proxy.createVoucherOrder(voucherOrder);
+            return proxy.createVoucherOrder(voucherOrder);
         } finally {
             // 釋放鎖
             lock.unlock();
         }
     }
 
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
+    /*
+     * 訂單狀態存放在以小時分桶的hash中, 桶由訂單id中的時間戳決定, 查詢時只需一次HGET
+     */
+    private static String orderStatusKey(long orderId) {
+        long hour = (orderId >>> 32) / 3600;
+        return RedisConstants.SECKILL_ORDER_STATUS_KEY + hour;
+    }
+
+    private void updateOrderStatus(Long orderId, String status) {
+        String key = orderStatusKey(orderId);
+        stringRedisTemplate.opsForHash().put(key, orderId.toString(), status);
+        stringRedisTemplate.expire(key, orderStatusTtl);
+    }
+
+    private void markOrdersCreated(List<VoucherOrder> voucherOrders) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            Set<String> keys = new HashSet<>();
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                String key = orderStatusKey(voucherOrder.getId());
+                conn.hSet(key, voucherOrder.getId().toString(), ORDER_STATUS_CREATED);
+                keys.add(key);
+            }
+            for (String key : keys) {
+                conn.expire(key, orderStatusTtl.getSeconds());
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        // 只查詢Redis
+        Object status = stringRedisTemplate.opsForHash().get(orderStatusKey(orderId), orderId.toString());
+        if (status == null) {
+            return Result.fail("訂單不存在");
+        }
+
+        // 格式: queued / created / cancelled / failed:原因
+        String value = status.toString();
+        Map<String, Object> result = new HashMap<>(2);
+        int index = value.indexOf(':');
+        if (index < 0) {
+            result.put("status", value);
+        } else {
+            result.put("status", value.substring(0, index));
+            result.put("reason", value.substring(index + 1));
+        }
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        // XRANGE stream.orders.dlq - + COUNT n
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().range(
+                DEAD_LETTER_QUEUE_NAME, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> result = new ArrayList<>(list == null ? 0 : list.size());
+        if (list != null) {
+            for (MapRecord<String, Object, Object> record : list) {
+                Map<Object, Object> values = new HashMap<>(record.getValue());
+                values.put("dlqId", record.getId().getValue());
+                result.add(values);
+            }
+        }
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result replayDeadLetter(String id) {
+        List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream()
+                .range(DEAD_LETTER_QUEUE_NAME, Range.closed(id, id));
+        if (list == null || list.isEmpty()) {
+            return Result.fail("死信訊息不存在");
+        }
+
+        // 檢查原訊息內容, 欄位不完整的死信無法重放
+        Map<Object, Object> values = list.get(0).getValue();
+        Map<String, String> message = new HashMap<>(3);
+        for (String field : Arrays.asList("userId", "voucherId", "id")) {
+            Object value = values.get(field);
+            if (value == null || !NumberUtil.isLong(value.toString())) {
+                return Result.fail("死信訊息缺少欄位 " + field + ", 無法重放");
+            }
+            message.put(field, value.toString());
+        }
+        // 來源須為訂單Queue stream.orders 或其分片 stream.orders.{n}
+        String source = values.get("source") == null ? "" : values.get("source").toString();
+        if (!QUEUE_NAME.equals(source) && !(source.startsWith(QUEUE_NAME + ".")
+                && NumberUtil.isInteger(source.substring(QUEUE_NAME.length() + 1)))) {
+            return Result.fail("死信訊息的來源Queue不正確, 無法重放");
+        }
+
+        // 以原訊息內容重新放回來源Queue
+        RecordId recordId = stringRedisTemplate.opsForStream().add(source, message);
+
+        // 從死信Queue刪除
+        stringRedisTemplate.opsForStream().delete(DEAD_LETTER_QUEUE_NAME, id);
+        updateOrderStatus(Long.valueOf(message.get("id")), ORDER_STATUS_QUEUED);
+        return Result.ok(recordId == null ? null : recordId.getValue());
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
         // 獲取userId
         Long userId = UserHolder.getUser().getId();
-        // 獲取orderId
+
+        // 本地檢查未通過, 不執行秒殺腳本直接返回
+        String message = checkLocally(voucherId, userId);
+        if (message != null) {
+            return Result.fail(message);
+        }
+
+        // Redis不可用時以本節點預留的庫存降級, 不必等待連線逾時
+        if (seckillLocalStock.isEnabled() && seckillLocalStock.isRedisDown()) {
+            return seckillVoucherDegraded(voucherId, userId);
+        }
+
+        try {
+            return leaseEnabled ? seckillVoucherWithLease(voucherId, userId)
+                    : seckillVoucherWithScript(voucherId, userId);
+        } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+            if (!seckillLocalStock.isEnabled()) {
+                throw e;
+            }
+            log.error("執行秒殺腳本時Redis不可用, 改以本節點預留的庫存下單", e);
+            seckillLocalStock.markRedisDown();
+            return seckillVoucherDegraded(voucherId, userId);
+        }
+    }
+
+    private Result seckillVoucherWithScript(Long voucherId, Long userId) {
+        // 通過檢查後才獲取orderId
         long orderId = redisIdWorker.nextId("order");
 
-        // 執行 lua 腳本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
+        // 執行 lua 腳本 (只有一張的批次), 成功時同時將訂單狀態記為queued
+        List<?> results = stringRedisTemplate.execute(
+                SECKILL_BATCH_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId));
+                userId.toString(), "all", String.valueOf(streamShards), String.valueOf(orderStatusTtl.getSeconds()),
+                String.valueOf(payTimeout.toMillis()),
+                voucherId.toString(), String.valueOf(orderId), orderStatusKey(orderId));
 
         // 判斷結果是否為0
-        int r = result.intValue();
+        int r = ((Number) results.get(0)).intValue();
         if (r != 0) {
             // 不等於 0 ，代表沒有購買資格
-            return Result.fail(r == 1 ? "庫存不足" : "不能重複下單");
+            return Result.fail(seckillFailMessage(voucherId, r));
         }
 
-        // 獲取代理對象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
         // 返回訂單id
         return Result.ok(orderId);
     }
 
+    private Result seckillVoucherDegraded(Long voucherId, Long userId) {
+        // 以本地id寫入訂單日誌, 節點編號由設定或租借的worker id決定
+        long orderId;
+        try {
+            orderId = redisIdWorker.nextFallbackId();
+        } catch (IllegalStateException e) {
+            log.error("無法生成備用訂單id", e);
+            return Result.fail("系統繁忙，請稍後再試");
+        }
+
+        // 從本節點在Redis預留的庫存扣減
+        int r = seckillLocalStock.trySell(voucherId, userId);
+        if (r != 0) {
+            SeckillStateCache.State state = seckillFailState(r);
+            return Result.fail(state == null ? "不能重複下單" : state.getMessage());
+        }
+
+        // Redis恢復後重放到資料庫
+        try {
+            orderJournal.append((orderId + "," + userId + "," + voucherId).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error("寫入訂單日誌失敗, voucherId: {}, userId: {}", voucherId, userId, e);
+            seckillLocalStock.giveBack(voucherId, userId);
+            return Result.fail("系統繁忙，請稍後再試");
+        }
+        return Result.ok(orderId);
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.journal.replay-interval:1000}")
+    public void replayJournalTask() {
+        // Redis恢復後才重放, 訂單狀態與購買用戶需一併寫回Redis
+        if (!running || seckillLocalStock.isRedisDown()) {
+            return;
+        }
+        try {
+            if (!orderJournal.hasPending()) {
+                return;
+            }
+            int count;
+            do {
+                count = orderJournal.replay(journalReplayBatch, this::replayJournalRecord);
+                if (count > 0) {
+                    log.info("重放 {} 筆降級期間的訂單", count);
+                }
+            } while (count == journalReplayBatch && running);
+        } catch (Exception e) {
+            log.error("重放訂單日誌異常", e);
+        }
+    }
+
+    /*
+     * 重放一筆訂單日誌, 返回false時下次重試
+     */
+    private boolean replayJournalRecord(byte[] record) {
+        // 格式: orderId,userId,voucherId
+        String[] fields = new String(record, StandardCharsets.UTF_8).split(",");
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(Long.valueOf(fields[0]));
+        voucherOrder.setUserId(Long.valueOf(fields[1]));
+        voucherOrder.setVoucherId(Long.valueOf(fields[2]));
+
+        try {
+            // 重放到一半重啟時訂單可能已寫入
+            if (getOrder(voucherOrder.getId()) == null) {
+                // 由資料庫庫存CAS及一人一單檢查作最後保證
+                Result result = proxy.createVoucherOrder(voucherOrder);
+                if (!result.getSuccess()) {
+                    log.warn("降級期間的訂單重放失敗, orderId: {}, 原因: {}", voucherOrder.getId(), result.getErrorMsg());
+                    updateOrderStatus(voucherOrder.getId(), ORDER_STATUS_FAILED + ":" + result.getErrorMsg());
+                    seckillLocalStock.replayed(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+                    return true;
+                }
+            }
+
+            // 補記Redis購買用戶, 並從本節點的預留扣減
+            stringRedisTemplate.execute(JOURNAL_SCRIPT, Collections.emptyList(),
+                    voucherOrder.getVoucherId().toString(), voucherOrder.getUserId().toString(),
+                    voucherOrder.getId().toString(), String.valueOf(payTimeout.toMillis()),
+                    seckillLocalStock.getReserveField());
+            seckillLocalStock.replayed(voucherOrder.getVoucherId(), voucherOrder.getUserId());
+            updateOrderStatus(voucherOrder.getId(), ORDER_STATUS_CREATED);
+            return true;
+        } catch (Exception e) {
+            log.error("重放訂單日誌失敗, 稍後重試, orderId: {}", voucherOrder.getId(), e);
+            return false;
+        }
+    }
+
+    private Result seckillVoucherWithLease(Long voucherId, Long userId) {
+        long orderId = redisIdWorker.nextId("order");
+
+        // 從本地租約扣減, 由Redis檢查一人一單
+        int r = seckillStockLease.purchase(voucherId, userId, orderId, streamShards, orderStatusKey(orderId),
+                orderStatusTtl.getSeconds(), payTimeout.toMillis());
+        if (r == 0) {
+            return Result.ok(orderId);
+        }
+        if (r == 1) {
+            // 本節點租不到庫存, 其他節點可能仍有租約, 不標記為售罄
+            return Result.fail(SeckillStateCache.State.SOLD_OUT.getMessage());
+        }
+        return Result.fail(seckillFailMessage(voucherId, r));
+    }
+
+    /*
+     * 執行秒殺腳本前的本地檢查, 未通過時返回原因
+     */
+    private String checkLocally(Long voucherId, Long userId) {
+        // 本地已知售罄/未開始/已結束
+        SeckillStateCache.State state = seckillStateCache.get(voucherId);
+        if (state != null) {
+            return state.getMessage();
+        }
+
+        // 降級期間在本節點下過單, 訂單日誌尚未重放到Redis
+        if (seckillLocalStock.isPendingBuyer(voucherId, userId)) {
+            return "不能重複下單";
+        }
+
+        // 超出該優惠券的限流值
+        if (!seckillAdmissionLimiter.tryAcquire(voucherId)) {
+            return SeckillAdmissionLimiter.BUSY_MESSAGE;
+        }
+        return null;
+    }
+
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds, boolean atomic) {
+        if (voucherIds == null || voucherIds.isEmpty()) {
+            return Result.fail("請選擇優惠券");
+        }
+        // 同一張優惠券只搶一次
+        List<Long> ids = new ArrayList<>(new LinkedHashSet<>(voucherIds));
+        if (ids.size() > maxBatchVouchers) {
+            return Result.fail("一次最多搶購 " + maxBatchVouchers + " 張優惠券");
+        }
+
+        // 獲取userId
+        Long userId = UserHolder.getUser().getId();
+
+        // 1. 本地檢查, 未通過的不送入腳本
+        Map<Long, Map<String, Object>> outcomes = new LinkedHashMap<>();
+        List<Long> candidates = new ArrayList<>(ids.size());
+        for (Long voucherId : ids) {
+            String message = checkLocally(voucherId, userId);
+            if (message != null) {
+                outcomes.put(voucherId, seckillOutcome(voucherId, null, message));
+            } else {
+                candidates.add(voucherId);
+            }
+        }
+
+        // 2. 全部成功模式下有任一張未通過, 整批不執行
+        if (atomic && !outcomes.isEmpty()) {
+            for (Long voucherId : candidates) {
+                outcomes.put(voucherId, seckillOutcome(voucherId, null, BATCH_ABORTED_MESSAGE));
+            }
+            candidates.clear();
+        }
+
+        // 3. 一次腳本呼叫檢查並扣減所有優惠券
+        if (!candidates.isEmpty()) {
+            List<String> args = new ArrayList<>(5 + candidates.size() * 3);
+            args.add(userId.toString());
+            args.add(atomic ? "all" : "best");
+            args.add(String.valueOf(streamShards));
+            args.add(String.valueOf(orderStatusTtl.getSeconds()));
+            args.add(String.valueOf(payTimeout.toMillis()));
+            long[] orderIds = new long[candidates.size()];
+            for (int i = 0; i < candidates.size(); i++) {
+                orderIds[i] = redisIdWorker.nextId("order");
+                args.add(candidates.get(i).toString());
+                args.add(String.valueOf(orderIds[i]));
+                args.add(orderStatusKey(orderIds[i]));
+            }
+
+            List<?> results = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(),
+                    args.toArray());
+            for (int i = 0; i < candidates.size(); i++) {
+                Long voucherId = candidates.get(i);
+                int r = ((Number) results.get(i)).intValue();
+                if (r == 0) {
+                    outcomes.put(voucherId, seckillOutcome(voucherId, orderIds[i], null));
+                } else if (r == 5) {
+                    outcomes.put(voucherId, seckillOutcome(voucherId, null, BATCH_ABORTED_MESSAGE));
+                } else {
+                    outcomes.put(voucherId, seckillOutcome(voucherId, null, seckillFailMessage(voucherId, r)));
+                }
+            }
+        }
+
+        // 依請求順序返回各優惠券的結果
+        List<Map<String, Object>> list = new ArrayList<>(ids.size());
+        String failMessage = null;
+        for (Long voucherId : ids) {
+            Map<String, Object> outcome = outcomes.get(voucherId);
+            if (failMessage == null && outcome.get("errorMsg") != null
+                    && !BATCH_ABORTED_MESSAGE.equals(outcome.get("errorMsg"))) {
+                failMessage = (String) outcome.get("errorMsg");
+            }
+            list.add(outcome);
+        }
+        if (atomic && failMessage != null) {
+            // 全部成功模式失敗時, 以第一個失敗原因作為錯誤訊息, 並附上各優惠券結果
+            return new Result(false, failMessage, list, null);
+        }
+        return Result.ok(list);
+    }
+
+    private static Map<String, Object> seckillOutcome(Long voucherId, Long orderId, String errorMsg) {
+        Map<String, Object> outcome = new LinkedHashMap<>(4);
+        outcome.put("voucherId", voucherId);
+        outcome.put("success", errorMsg == null);
+        if (orderId != null) {
+            outcome.put("orderId", orderId);
+        }
+        if (errorMsg != null) {
+            outcome.put("errorMsg", errorMsg);
+        }
+        return outcome;
+    }
+
+    private String seckillFailMessage(Long voucherId, int r) {
+        SeckillStateCache.State state = seckillFailState(r);
+        if (state == null) {
+            return "不能重複下單";
+        }
+        // 記錄本地狀態, 後續請求直接拒絕
+        seckillStateCache.mark(voucherId, state);
+        return state.getMessage();
+    }
+
+    private static SeckillStateCache.State seckillFailState(int r) {
+        // 1: 庫存不足 2: 重複下單 3: 尚未開始 4: 已經結束
+        switch (r) {
+            case 1:
+                return SeckillStateCache.State.SOLD_OUT;
+            case 3:
+                return SeckillStateCache.State.NOT_STARTED;
+            case 4:
+                return SeckillStateCache.State.ENDED;
+            default:
+                return null;
+        }
+    }
+
     // @Override
     // public Result seckillVoucher(Long voucherId) {
     // // 獲取userId
@@ -310,19 +1643,24 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     // }
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Result createVoucherOrder(VoucherOrder voucherOrder) {
+        if (idempotentPersist) {
+            return createVoucherOrderIdempotent(voucherOrder);
+        }
+
         // 一人一單
         Long userId = voucherOrder.getUserId();
         Long voucherId = voucherOrder.getVoucherId();
 
         // 查詢訂單
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
+        int count = countOrders(voucherId, Collections.singletonList(userId));
         // 判斷是否存在
         if (count > 0) {
             // 已存在，不能重複購買
             log.error("用戶已購買過一次");
-            return;
+            return Result.fail("用戶已購買過一次");
         }
 
         // 下單
@@ -335,11 +1673,170 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         if (!success) {
             log.error("庫存不足");
-            return;
+            return Result.fail("庫存不足");
         }
 
         // 儲存訂單
-        save(voucherOrder);
+        orderTableRouter.route(voucherOrder.getId(), () -> save(voucherOrder));
+        return Result.ok(voucherOrder.getId());
+    }
+
+    private Result createVoucherOrderIdempotent(VoucherOrder voucherOrder) {
+        // 一人一單: 依唯一索引 (voucher_id, user_id) INSERT IGNORE, 影響筆數為0代表已存在
+        int inserted = orderTableRouter.route(voucherOrder.getId(),
+                () -> getBaseMapper().insertIgnore(voucherOrder));
+        if (inserted == 0) {
+            // 同一筆訂單重複投遞 (例如已寫入但未ACK), 視為成功
+            if (getOrder(voucherOrder.getId()) != null) {
+                return Result.ok(voucherOrder.getId());
+            }
+            log.error("用戶已購買過一次");
+            return Result.fail("用戶已購買過一次");
+        }
+
+        // 檢查庫存是否充足，減庫存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - 1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                // 樂觀鎖 (CAS)
+                .gt("stock", 0).update();
+
+        if (!success) {
+            // 庫存不足, 回滾已寫入的訂單
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            log.error("庫存不足");
+            return Result.fail("庫存不足");
+        }
+        return Result.ok(voucherOrder.getId());
+    }
+
+    @Override
+    @Transactional
+    public boolean createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 依優惠券分組
+        Map<Long, List<VoucherOrder>> groups = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+
+        // 一人一單, 先檢查整批, 任一不符則交由逐筆處理 (idempotent模式由唯一索引檢查)
+        if (!idempotentPersist) {
+            for (Map.Entry<Long, List<VoucherOrder>> entry : groups.entrySet()) {
+                Set<Long> userIds = entry.getValue().stream().map(VoucherOrder::getUserId)
+                        .collect(Collectors.toSet());
+                if (userIds.size() < entry.getValue().size()) {
+                    return false;
+                }
+                int count = countOrders(entry.getKey(), userIds);
+                if (count > 0) {
+                    return false;
+                }
+            }
+        }
+
+        // 每張優惠券只扣一次庫存 stock = stock - k
+        for (Map.Entry<Long, List<VoucherOrder>> entry : groups.entrySet()) {
+            int k = entry.getValue().size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    // 樂觀鎖 (CAS)
+                    .ge("stock", k).update();
+            if (!success) {
+                // 庫存不足, 回滾已扣的庫存
+                TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+                return false;
+            }
+        }
+
+        // 多筆一次寫入, 分表時每個月一次
+        int inserted = 0;
+        Map<String, List<VoucherOrder>> tables = voucherOrders.stream()
+                .collect(Collectors.groupingBy(o -> orderTableRouter.tableOf(o.getId())));
+        for (Map.Entry<String, List<VoucherOrder>> table : tables.entrySet()) {
+            inserted += orderTableRouter.route(table.getKey(),
+                    () -> getBaseMapper().insertBatch(table.getValue(), idempotentPersist));
+        }
+        if (inserted < voucherOrders.size()) {
+            // 有重複訂單被忽略, 回滾整批交由逐筆處理
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * 依訂單id中的時間定位分表查詢
+     */
+    private VoucherOrder getOrder(Long orderId) {
+        return orderTableRouter.route(orderId, () -> getById(orderId));
+    }
+
+    /*
+     * 查詢用戶在該優惠券的訂單數, 分表時檢查秒殺期間的每個月份
+     * 包含已取消的訂單: 取消後購買用戶仍保留在Redis, 與唯一索引 uk_voucher_user 相同, 每個用戶只能下單一次
+     */
+    private int countOrders(Long voucherId, Collection<Long> userIds) {
+        int count = 0;
+        for (String table : orderTables(voucherId)) {
+            count += orderTableRouter.route(table,
+                    () -> query().eq("voucher_id", voucherId).in("user_id", userIds).count());
+        }
+        return count;
+    }
+
+    private List<String> orderTables(Long voucherId) {
+        if (!orderTableRouter.isEnabled()) {
+            return Collections.singletonList(OrderTableRouter.TABLE);
+        }
+        SeckillVoucher voucher = seckillVoucherWindows.get(voucherId, seckillVoucherService::getById);
+        if (voucher == null) {
+            return Collections.singletonList(orderTableRouter.tableOf(YearMonth.now()));
+        }
+        return orderTableRouter.tablesBetween(voucher.getBeginTime(), voucher.getEndTime());
+    }
+
+    /*
+     * 預先建立之後幾個月的訂單分表, 啟動時即執行一次
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.partition.create-interval:3600000}")
+    public void createOrderPartitionsTask() {
+        if (!orderTableRouter.isEnabled()) {
+            return;
+        }
+        for (String table : orderTableRouter.upcomingTables(partitionAheadMonths)) {
+            try {
+                // CREATE TABLE IF NOT EXISTS tb_voucher_order_yyyyMM LIKE tb_voucher_order
+                getBaseMapper().createTableLike(table);
+            } catch (Exception e) {
+                log.error("建立訂單分表失敗, table: {}", table, e);
+            }
+        }
     }
 
+    @Override
+    public Result queryOrders(LocalDateTime begin, LocalDateTime end, Integer count) {
+        if (!begin.isBefore(end)) {
+            return Result.fail("時間區間錯誤");
+        }
+        if (count == null || count <= 0 || count > maxQueryCount) {
+            return Result.fail("一次最多查詢 " + maxQueryCount + " 筆訂單");
+        }
+
+        // 以訂單id的範圍查詢主鍵, 只查詢區間內月份的分表
+        long minId = OrderIdDecoder.minId(begin);
+        long maxId = OrderIdDecoder.minId(end);
+        List<VoucherOrder> orders = new ArrayList<>();
+        for (String table : orderTableRouter.tablesBetween(begin, end)) {
+            int remaining = count - orders.size();
+            if (remaining <= 0) {
+                break;
+            }
+            orders.addAll(orderTableRouter.route(table, () -> query()
+                    .ge("id", minId)
+                    .lt("id", maxId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + remaining)
+                    .list()));
+        }
+        return Result.ok(orders);
+    }
 }
@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import cn.hutool.core.util.StrUtil;
+
+/*
+ * 管理接口 /admin/** 的攔截器, 請求header X-Admin-Token 須與 hmdp.admin.token 相同
+ * 未設定token時拒絕所有管理請求
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+
+    private final byte[] token;
+
+    public AdminInterceptor(String token) {
+        this.token = StrUtil.isBlank(token) ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request,
+            HttpServletResponse response, Object handler) throws Exception {
+        String header = request.getHeader(TOKEN_HEADER);
+        // 以固定時間比較, 避免由回應時間猜出token
+        if (token == null || header == null
+                || !MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8))) {
+            // 無管理權限，返回 403 狀態碼
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
@@ -1,99 +1,286 @@
 package com.hmdp.utils;
 
-import java.time.LocalDateTime;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
 
+/*
+ * 緩存工具: Redis (L2) 前可選擇加上本地緩存 (L1), 依key前綴啟用
+ * L1 存放反序列化後的物件, 命中時不需Redis呼叫及JSON解析
+ * 透過本工具寫入或刪除時, 以 pub/sub 通知所有節點移除L1; 通知與讀取交錯時的舊值最多保留 expire-after-write
+ *
+ * Redis中的值格式: 1 byte 格式編號 | 8 bytes 邏輯過期時間 (毫秒, 0 代表一般緩存) | CacheCodec 編碼後的物件
+ * - 邏輯過期時間放在header, 不需包裝為 RedisData, 讀取時只解析一次
+ * - 空值緩存為空字串
+ * - 舊格式 (hutool JSON, 邏輯過期包裝為 RedisData) 以 '{' 開頭, 仍可讀取, 重建後改為新格式
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    public static final int HEADER_LENGTH = 9;
+
+    /*
+     * 解碼後的緩存值, 本地緩存也存放此物件, 邏輯過期時間為0代表一般緩存
+     */
+    private static class Entry {
+        private static final Entry NULL = new Entry(null, 0);
+
+        private final Object value;
+        private final long expireAt;
+
+        Entry(Object value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /*
+     * 各key前綴的命中次數, 註冊為 cache.client.requests 指標
+     */
+    private class Stats {
+        private final Counter l1Hit;
+        private final Counter l1Miss;
+        private final Counter l2Hit;
+        private final Counter l2Miss;
+
+        Stats(String prefix) {
+            l1Hit = counter(prefix, "l1", "hit");
+            l1Miss = counter(prefix, "l1", "miss");
+            l2Hit = counter(prefix, "l2", "hit");
+            l2Miss = counter(prefix, "l2", "miss");
+        }
+
+        private Counter counter(String prefix, String tier, String result) {
+            return meterRegistry.counter("cache.client.requests", "prefix", prefix, "tier", tier, "result", result);
+        }
+    }
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    /*
+     * 啟用本地緩存的key前綴
+     */
+    private final Set<String> localPrefixes;
+
+    private final Cache<String, Entry> localCache;
+
+    /*
+     * 寫入時使用的編碼
+     */
+    private final CacheCodec codec;
+
+    /*
+     * 依格式編號讀取
+     */
+    private final CacheCodec[] codecsById = new CacheCodec[128];
+
+    private final DistributionSummary encodedBytes;
+
+    /*
+     * 本節點發出的移除通知不需再處理
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer listenerContainer,
+            MeterRegistry meterRegistry, List<CacheCodec> codecs,
+            @Value("${hmdp.cache.codec:json}") String codecName,
+            @Value("${hmdp.cache.local.prefixes:}") Set<String> localPrefixes,
+            @Value("${hmdp.cache.local.maximum-size:10000}") long maximumSize,
+            @Value("${hmdp.cache.local.expire-after-write:5s}") Duration expireAfterWrite) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.localPrefixes = localPrefixes == null ? Collections.emptySet() : localPrefixes;
+        this.localCache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build();
+        for (CacheCodec c : codecs) {
+            if (c.id() <= 0 || c.id() == '{' || codecsById[c.id()] != null) {
+                throw new IllegalStateException("緩存格式編號不可用: " + c.id() + ", " + c.name());
+            }
+            codecsById[c.id()] = c;
+        }
+        this.codec = codecs.stream().filter(c -> c.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的緩存編碼: " + codecName));
+        this.encodedBytes = DistributionSummary.builder("cache.client.encoded.bytes")
+                .baseUnit("bytes")
+                .tag("codec", codec.name())
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    private void init() {
+        if (localPrefixes.isEmpty()) {
+            return;
+        }
+        // 整體命中率、大小及淘汰數 cache.gets / cache.size / cache.evictions {cache=local}
+        CaffeineCacheMetrics.monitor(meterRegistry, localCache, "local");
+        // 訂閱其他節點的移除通知
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
     }
 
+    /*
+     * 寫入緩存, 並通知所有節點移除本地緩存
+     */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, encode(value, 0), time, unit);
+        invalidateLocal(key);
     }
 
-    /* 設置邏輯過期 */
-    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit seconds) {
-        // 設置邏輯過期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(seconds.toSeconds(time)));
-        // 寫入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    /* 設置邏輯過期, 並通知所有節點移除本地緩存 */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        // 邏輯過期時間寫在header, 寫入redis
+        setRaw(key, encode(value, System.currentTimeMillis() + unit.toMillis(time)), null, null);
+        invalidateLocal(key);
+    }
+
+    /*
+     * 刪除緩存, 並通知所有節點移除本地緩存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
     }
 
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time,
             TimeUnit unit) {
         String key = keyPrefix + id;
-        // 從redis查詢店鋪緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
 
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
-        }
-
-        // 判斷查詢到的是否是空字串
-        if (json != null) {
-            return null;
+        // 查詢本地緩存及redis, 空值也會緩存
+        Entry entry = lookup(keyPrefix, key, type);
+        if (entry != null) {
+            return type.cast(entry.value);
         }
 
-        // 緩存不存在, 根據id查詢mySQL
+        // 緩存不存在, 根據id查詢mySQL並寫入redis
         R r = dbFallback.apply(id);
-        if (r == null) {
-            stringRedisTemplate.opsForValue().set(key, "", time, unit);
-            return null;
-        }
-
-        // mySQL存在, 寫入redis
-        this.set(key, r, time, unit);
+        cache(key, r, time, unit);
 
         return r;
     }
 
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time,
+            TimeUnit unit) {
+        String key = keyPrefix + id;
+        String lockKey = lockKey(keyPrefix, id);
+
+        while (true) {
+            // 查詢本地緩存及redis, 空值也會緩存
+            Entry entry = lookup(keyPrefix, key, type);
+            if (entry != null) {
+                return type.cast(entry.value);
+            }
+
+            // 獲取互斥鎖, 成功則查詢資料庫並重建緩存
+            if (trylock(lockKey)) {
+                try {
+                    R r = dbFallback.apply(id);
+                    cache(key, r, time, unit);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+
+            // 失敗, 休眠並重試
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
             Long time, TimeUnit unit) {
         String key = keyPrefix + id;
+        Stats stat = stats(keyPrefix);
+
+        // 本地緩存未邏輯過期時直接返回, 已過期則交由Redis判斷是否需要重建
+        boolean local = localPrefixes.contains(keyPrefix);
+        if (local) {
+            Entry entry = localCache.getIfPresent(key);
+            if (entry != null && entry.expireAt > System.currentTimeMillis()) {
+                stat.l1Hit.increment();
+                return type.cast(entry.value);
+            }
+            stat.l1Miss.increment();
+        }
+
         // 從redis查詢店鋪緩存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getRaw(key);
 
         // redis沒有緩存, 直接返回null
-        if (StrUtil.isBlank(json)) {
+        if (bytes == null || bytes.length == 0) {
+            stat.l2Miss.increment();
             return null;
         }
+        stat.l2Hit.increment();
 
-        // 命中, 先把json反序列化為對象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        // 命中, 反序列化為對象, 邏輯過期時間由header讀取
+        Entry entry = decode(bytes, type, true);
+        R r = type.cast(entry.value);
 
         // 判斷是否過期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (entry.expireAt > System.currentTimeMillis()) {
             // 未過期, 直接返回店鋪資訊
+            if (local) {
+                localCache.put(key, entry);
+            }
             return r;
         }
 
         // 已過期, 需要重建緩存
         // 獲取互斥鎖
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        String lockKey = lockKey(keyPrefix, id);
 
         boolean isLock = trylock(lockKey);
 
@@ -105,8 +292,9 @@ public class CacheClient {
                     // 查詢資料庫
                     R r1 = dbFallback.apply(id);
 
-                    // 重建緩存
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    // 重建緩存, 資料未變更不必通知, 其他節點的本地緩存已邏輯過期, 會改由Redis讀取
+                    setRaw(key, encode(r1, System.currentTimeMillis() + unit.toMillis(time)), null, null);
+                    localCache.invalidate(key);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
@@ -120,6 +308,128 @@ public class CacheClient {
         return r;
     }
 
+    /*
+     * 查詢本地緩存及redis的一般緩存, 都未命中返回null, 空值緩存返回 Entry.NULL
+     */
+    private Entry lookup(String keyPrefix, String key, Class<?> type) {
+        Stats stat = stats(keyPrefix);
+        boolean local = localPrefixes.contains(keyPrefix);
+        if (local) {
+            Entry entry = localCache.getIfPresent(key);
+            if (entry != null) {
+                stat.l1Hit.increment();
+                return entry;
+            }
+            stat.l1Miss.increment();
+        }
+
+        byte[] bytes = getRaw(key);
+        if (bytes == null) {
+            stat.l2Miss.increment();
+            return null;
+        }
+        stat.l2Hit.increment();
+
+        // 判斷查詢到的是否是空字串
+        Entry entry = bytes.length == 0 ? Entry.NULL : decode(bytes, type, false);
+        if (local) {
+            localCache.put(key, entry);
+        }
+        return entry;
+    }
+
+    /*
+     * 寫入資料庫查詢結果, 不存在時寫入空字串, 避免緩存穿透
+     * 只是回填緩存, 資料沒有變更, 不通知其他節點; 只有 set / setWithLogicalExpire / delete 才通知
+     */
+    private void cache(String key, Object value, Long time, TimeUnit unit) {
+        setRaw(key, value == null ? new byte[0] : encode(value, 0), time, unit);
+    }
+
+    /*
+     * 寫入redis, time為null時不設置過期時間
+     */
+    private void setRaw(String key, byte[] bytes, Long time, TimeUnit unit) {
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, unit);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.stringCommands()
+                .set(rawKey(key), bytes, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private byte[] encode(Object value, long expireAt) {
+        byte[] payload = codec.encode(value);
+        byte[] bytes = ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put(codec.id())
+                .putLong(expireAt)
+                .put(payload)
+                .array();
+        encodedBytes.record(bytes.length);
+        return bytes;
+    }
+
+    private Entry decode(byte[] bytes, Class<?> type, boolean logical) {
+        CacheCodec c = bytes.length >= HEADER_LENGTH && bytes[0] > 0 ? codecsById[bytes[0]] : null;
+        if (c != null) {
+            long expireAt = ByteBuffer.wrap(bytes).getLong(1);
+            return new Entry(c.decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH, type), expireAt);
+        }
+
+        // 舊格式的hutool JSON
+        String json = new String(bytes, StandardCharsets.UTF_8);
+        if (!logical) {
+            return new Entry(JSONUtil.toBean(json, type), 0);
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return new Entry(JSONUtil.toBean((JSONObject) redisData.getData(), type), expireAt);
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands()
+                .get(rawKey(key)));
+    }
+
+    private byte[] rawKey(String key) {
+        return stringRedisTemplate.getStringSerializer().serialize(key);
+    }
+
+    /*
+     * 重建緩存的互斥鎖 lock:{keyPrefix}{id}, 不同前綴的相同id互不阻塞
+     */
+    private static String lockKey(String keyPrefix, Object id) {
+        return "lock:" + keyPrefix + id;
+    }
+
+    private Stats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, Stats::new);
+    }
+
+    /*
+     * 移除本節點的本地緩存, 並通知其他節點
+     */
+    private void invalidateLocal(String key) {
+        if (localPrefixes.isEmpty() || localPrefixes.stream().noneMatch(key::startsWith)) {
+            return;
+        }
+        localCache.invalidate(key);
+        try {
+            // 訊息格式 instanceId key
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, instanceId + " " + key);
+        } catch (Exception e) {
+            // 通知失敗時其他節點在 expire-after-write 後自行更新
+            log.warn("發布緩存移除通知失敗, key: {}", key, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(' ');
+        if (index < 0 || body.substring(0, index).equals(instanceId)) {
+            return;
+        }
+        localCache.invalidate(body.substring(index + 1));
+    }
+
     private boolean trylock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
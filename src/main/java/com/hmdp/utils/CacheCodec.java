@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+/*
+ * CacheClient 緩存值的編碼方式, 實作註冊為Bean後以 hmdp.cache.codec 選擇寫入時使用的編碼
+ * 讀取時依值開頭的格式編號選擇編碼, 切換編碼後既有緩存仍可讀取
+ */
+public interface CacheCodec {
+
+    /*
+     * 寫入header的格式編號, 各實作需唯一, 且不可為舊格式JSON開頭的 '{'
+     */
+    byte id();
+
+    /*
+     * hmdp.cache.codec 設定的名稱
+     */
+    String name();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, int offset, int length, Class<T> type);
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+
+/*
+ * 以Jackson編碼, Blackbird 以 LambdaMetafactory 產生存取方法取代反射
+ * - 時間寫為數字陣列, null欄位不寫入
+ * - 忽略未知欄位, 實體刪除欄位後舊緩存仍可讀取
+ */
+abstract class JacksonCacheCodec implements CacheCodec {
+
+    private final ObjectMapper mapper;
+
+    JacksonCacheCodec(JsonFactory factory) {
+        this.mapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                .registerModule(new BlackbirdModule())
+                .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("緩存編碼失敗: " + value.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, int offset, int length, Class<T> type) {
+        try {
+            return mapper.readValue(bytes, offset, length, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("緩存解碼失敗: " + type.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+
+/*
+ * JSON編碼, 可直接以 redis-cli 查看 (header之後的部分)
+ */
+@Component
+public class JsonCacheCodec extends JacksonCacheCodec {
+
+    public JsonCacheCodec() {
+        super(new JsonFactory());
+    }
+
+    @Override
+    public byte id() {
+        return 1;
+    }
+
+    @Override
+    public String name() {
+        return "json";
+    }
+}
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+
+/*
+ * 解析 RedisIdWorker / SnowflakeIdWorker 生成的id: 高32位為開始時間戳後的秒數
+ * 時間與生成時相同, 以本地時間換算 (生成時以 LocalDateTime 視為UTC計算秒數)
+ */
+public class OrderIdDecoder {
+
+    private OrderIdDecoder() {
+    }
+
+    /*
+     * id生成的時間, 精確到秒
+     */
+    public static LocalDateTime createTime(long id) {
+        return LocalDateTime.ofEpochSecond((id >>> RedisIdWorker.COUNT_BITS) + RedisIdWorker.BEGIN_TIMESTAMP, 0,
+                ZoneOffset.UTC);
+    }
+
+    /*
+     * id生成的月份, 決定訂單所在的分表
+     */
+    public static YearMonth month(long id) {
+        return YearMonth.from(createTime(id));
+    }
+
+    /*
+     * 該時間之後生成的id都不小於此值, 用於以主鍵範圍查詢時間區間
+     */
+    public static long minId(LocalDateTime time) {
+        return (time.toEpochSecond(ZoneOffset.UTC) - RedisIdWorker.BEGIN_TIMESTAMP) << RedisIdWorker.COUNT_BITS;
+    }
+}
@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * 本地訂單日誌, 以記憶體映射的分段檔案只追加寫入, Redis不可用時暫存訂單, 之後依序重放到資料庫
+ * 每筆記錄: 長度(4) + CRC32(4) + 內容, 長度為0代表該段已寫到此處
+ * 重放位置記錄在 checkpoint 檔案, 讀完的分段即刪除
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER = 8;
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    /*
+     * 每筆寫入後是否立即刷到磁碟, 否則依排程刷新
+     */
+    private final boolean forceOnAppend;
+
+    private boolean opened;
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+
+    private long readSegment;
+    private int readOffset;
+    private long readBufferSegment = -1;
+    private MappedByteBuffer readBuffer;
+
+    public OrderJournal(@Value("${hmdp.seckill.journal.dir:./data/order-journal}") String dir,
+            @Value("${hmdp.seckill.journal.segment-size:64MB}") DataSize segmentSize,
+            @Value("${hmdp.seckill.journal.force-on-append:false}") boolean forceOnAppend) {
+        this.directory = Paths.get(dir);
+        this.segmentBytes = (int) segmentSize.toBytes();
+        this.forceOnAppend = forceOnAppend;
+    }
+
+    /*
+     * 追加一筆記錄, 返回後記錄已在映射的檔案中
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        open();
+        int length = HEADER + payload.length;
+        if (length > segmentBytes) {
+            throw new IOException("記錄大小超過分段大小: " + payload.length);
+        }
+
+        // 本段空間不足, 換下一段
+        if (writeBuffer.remaining() < length) {
+            writeBuffer.force();
+            writeSegment++;
+            writeBuffer = map(writeSegment);
+        }
+
+        // 先寫內容再寫長度, 讀取時看到長度即代表內容已完整
+        int position = writeBuffer.position();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        writeBuffer.putInt(position + 4, (int) crc.getValue());
+        writeBuffer.put(position + HEADER, payload);
+        writeBuffer.putInt(position, payload.length);
+        writeBuffer.position(position + length);
+
+        if (forceOnAppend) {
+            writeBuffer.force(position, length);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.journal.flush-interval:200}")
+    @PreDestroy
+    public synchronized void flush() {
+        if (writeBuffer != null) {
+            writeBuffer.force();
+        }
+    }
+
+    /*
+     * 是否有尚未重放的記錄
+     */
+    public synchronized boolean hasPending() throws IOException {
+        if (!opened && listSegments().isEmpty()) {
+            return false;
+        }
+        open();
+        return readSegment < writeSegment || readOffset < writeBuffer.position();
+    }
+
+    /*
+     * 依序重放最多max筆記錄, handler返回false時停止, 該筆之後下次再重放
+     * 只由單一線程呼叫, handler執行期間不持有鎖, 不阻塞寫入
+     */
+    public int replay(int max, Predicate<byte[]> handler) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        long segment;
+
+        synchronized (this) {
+            open();
+            int offset = readOffset;
+            while (records.size() < max) {
+                if (readSegment == writeSegment && offset >= writeBuffer.position()) {
+                    break;
+                }
+                ByteBuffer buffer = readSegment == writeSegment ? writeBuffer : readBuffer(readSegment);
+                int length = offset + HEADER <= buffer.capacity() ? buffer.getInt(offset) : 0;
+                if (length <= 0 || offset + HEADER + length > buffer.capacity()) {
+                    // 本段已讀完, 已讀取的記錄處理完後下次再換段
+                    if (!records.isEmpty()) {
+                        break;
+                    }
+                    deleteSegment(readSegment);
+                    readSegment++;
+                    readOffset = 0;
+                    offset = 0;
+                    saveCheckpoint();
+                    continue;
+                }
+
+                byte[] payload = new byte[length];
+                buffer.get(offset + HEADER, payload);
+                offset += HEADER + length;
+
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != buffer.getInt(offset - length - 4)) {
+                    // 已讀取的記錄處理完後下次再略過
+                    if (!records.isEmpty()) {
+                        break;
+                    }
+                    log.error("訂單日誌記錄損壞, 略過, segment: {}, offset: {}", readSegment, offset - length - HEADER);
+                    readOffset = offset;
+                    saveCheckpoint();
+                    continue;
+                }
+                records.add(payload);
+                offsets.add(offset);
+            }
+            segment = readSegment;
+        }
+
+        int count = 0;
+        for (byte[] record : records) {
+            if (!handler.test(record)) {
+                break;
+            }
+            count++;
+        }
+
+        if (count > 0) {
+            synchronized (this) {
+                if (readSegment == segment) {
+                    readOffset = offsets.get(count - 1);
+                    saveCheckpoint();
+                }
+            }
+        }
+        return count;
+    }
+
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        Files.createDirectories(directory);
+
+        // 1. 讀取重放位置
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            readSegment = buffer.getLong();
+            readOffset = buffer.getInt();
+        }
+
+        // 2. 開啟最後一段, 找出寫入位置
+        List<Long> segments = listSegments();
+        if (segments.isEmpty()) {
+            writeSegment = readSegment;
+            writeBuffer = map(writeSegment);
+        } else {
+            if (readSegment < segments.get(0)) {
+                readSegment = segments.get(0);
+                readOffset = 0;
+            }
+            writeSegment = Math.max(segments.get(segments.size() - 1), readSegment);
+            writeBuffer = map(writeSegment);
+            recover();
+        }
+        opened = true;
+    }
+
+    /*
+     * 掃描最後一段的有效記錄, 停在第一筆不完整或損壞的記錄
+     */
+    private void recover() {
+        int position = 0;
+        while (position + HEADER <= writeBuffer.capacity()) {
+            int length = writeBuffer.getInt(position);
+            if (length <= 0 || position + HEADER + length > writeBuffer.capacity()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            writeBuffer.get(position + HEADER, payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != writeBuffer.getInt(position + 4)) {
+                break;
+            }
+            position += HEADER + length;
+        }
+
+        // 清除寫到一半的殘留內容, 避免之後被當成記錄讀取
+        if (position + HEADER <= writeBuffer.capacity() && writeBuffer.getInt(position) != 0) {
+            log.warn("訂單日誌尾端有不完整的記錄, 已清除, segment: {}, offset: {}", writeSegment, position);
+            for (int i = position; i < writeBuffer.capacity(); i++) {
+                writeBuffer.put(i, (byte) 0);
+            }
+            writeBuffer.force();
+        }
+        writeBuffer.position(position);
+    }
+
+    private MappedByteBuffer map(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    private ByteBuffer readBuffer(long segment) throws IOException {
+        if (readBufferSegment != segment) {
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                readBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            readBufferSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    private void deleteSegment(long segment) throws IOException {
+        if (readBufferSegment == segment) {
+            readBuffer = null;
+            readBufferSegment = -1;
+        }
+        Files.deleteIfExists(segmentPath(segment));
+    }
+
+    private void saveCheckpoint() throws IOException {
+        // 先寫暫存檔再替換, 避免寫到一半
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putLong(readSegment).putInt(readOffset);
+        Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp, buffer.array());
+        Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve(String.format("%020d", segment) + SEGMENT_SUFFIX);
+    }
+}
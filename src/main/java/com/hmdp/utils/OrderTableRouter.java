@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.baomidou.mybatisplus.extension.plugins.handler.TableNameHandler;
+
+import cn.hutool.core.util.StrUtil;
+
+/*
+ * 訂單按月分表: tb_voucher_order_yyyyMM, 月份由訂單id中的時間戳決定, 不需查詢即可定位
+ * 以 route 包住的操作中, SQL裡的 tb_voucher_order 會被動態表名插件替換為目標表
+ * 分表開始前的訂單仍在 tb_voucher_order
+ */
+@Component
+public class OrderTableRouter implements TableNameHandler {
+
+    public static final String TABLE = "tb_voucher_order";
+
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    /*
+     * 是否按月分表
+     */
+    private final boolean enabled;
+
+    /*
+     * 開始分表的月份, 之前的訂單在原表, 未設定代表全部分表
+     */
+    private final YearMonth since;
+
+    public OrderTableRouter(@Value("${hmdp.order.partition.enabled:false}") boolean enabled,
+            @Value("${hmdp.order.partition.since:}") String since) {
+        this.enabled = enabled;
+        this.since = StrUtil.isBlank(since) ? null : YearMonth.parse(since);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String tableOf(YearMonth month) {
+        if (!enabled || (since != null && month.isBefore(since))) {
+            return TABLE;
+        }
+        return TABLE + "_" + month.format(SUFFIX);
+    }
+
+    public String tableOf(long orderId) {
+        return tableOf(OrderIdDecoder.month(orderId));
+    }
+
+    /*
+     * 時間區間內的訂單所在的表, 依月份先後排列, 結束時間晚於現在時只到本月
+     */
+    public List<String> tablesBetween(LocalDateTime begin, LocalDateTime end) {
+        YearMonth last = YearMonth.from(end.isAfter(LocalDateTime.now()) ? LocalDateTime.now() : end);
+        Set<String> tables = new LinkedHashSet<>();
+        for (YearMonth month = YearMonth.from(begin); !month.isAfter(last); month = month.plusMonths(1)) {
+            tables.add(tableOf(month));
+        }
+        if (tables.isEmpty()) {
+            tables.add(tableOf(YearMonth.from(begin)));
+        }
+        return new ArrayList<>(tables);
+    }
+
+    /*
+     * 本月及之後幾個月的分表, 供預先建立
+     */
+    public List<String> upcomingTables(int months) {
+        List<String> tables = new ArrayList<>(months + 1);
+        YearMonth now = YearMonth.now();
+        for (int i = 0; i <= months; i++) {
+            String table = tableOf(now.plusMonths(i));
+            if (!TABLE.equals(table)) {
+                tables.add(table);
+            }
+        }
+        return tables;
+    }
+
+    /*
+     * 在指定的表上執行, 可巢狀呼叫
+     */
+    public <T> T route(String table, Supplier<T> action) {
+        String previous = CURRENT.get();
+        CURRENT.set(table);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    public <T> T route(long orderId, Supplier<T> action) {
+        return route(tableOf(orderId), action);
+    }
+
+    @Override
+    public String dynamicTableName(String sql, String tableName) {
+        String table = CURRENT.get();
+        return table != null && TABLE.equalsIgnoreCase(tableName) ? table : tableName;
+    }
+}
@@ -10,11 +10,26 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUYERS_KEY = "seckill:buyers:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_STATE_CHANNEL = "seckill:state";
+    public static final String SECKILL_PREHEATED_KEY = "seckill:preheated";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_TIMEOUT_KEY = "seckill:order:timeout";
+    public static final String SECKILL_RECONCILE_CURSOR_KEY = "seckill:reconcile:cursor";
+    public static final String SECKILL_STREAM_ARCHIVE_KEY = "seckill:stream:archived";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:config";
+    public static final String SECKILL_LIMIT_CHANNEL = "seckill:limit";
+    public static final String ID_WORKER_KEY = "id:worker:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
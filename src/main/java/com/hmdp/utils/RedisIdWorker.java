@@ -1,31 +1,207 @@
 package com.hmdp.utils;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 @Component
 public class RedisIdWorker {
 
     /*
      * 開始時間戳
      */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    static final long BEGIN_TIMESTAMP = 1640995200L;
 
     /*
      * 序列號位數
      */
-    private static final int COUNT_BITS = 32;
+    static final int COUNT_BITS = 32;
+
+    /*
+     * 本地備用id: 序列號最高位為1, 接著11位節點編號, 20位每秒序號, 不會與Redis自增的序列號重複
+     * 節點編號: 0 ~ 1023 為向Redis租借的worker id, 1024 ~ 2047 為設定的 hmdp.id.fallback.node-id
+     */
+    private static final long FALLBACK_FLAG = 1L << 31;
+    private static final int FALLBACK_NODE_BITS = 11;
+    private static final int FALLBACK_SEQUENCE_BITS = 20;
+    private static final int FALLBACK_CONFIGURED_NODES = 1 << (FALLBACK_NODE_BITS - 1);
+
+    /*
+     * 設定的節點編號 (0 ~ 1023), 每個實例需唯一; 未設定時使用 SnowflakeIdWorker 租借的worker id
+     */
+    @Value("${hmdp.id.fallback.node-id:-1}")
+    private int fallbackNodeId = -1;
 
-    private StringRedisTemplate stringRedisTemplate;
+    /*
+     * 高位為秒數, 低位為該秒內的序號
+     */
+    private final AtomicLong fallbackState = new AtomicLong();
+
+    /*
+     * 號段: 以INCRBY一次保留 [start, end) 的序列號, 由本地計數器發放
+     */
+    private static class Block {
+        private final AtomicLong cursor;
+        private final long end;
+        // 剩餘數量等於此值時預取下一段
+        private final long prefetchAt;
+
+        Block(long start, long end, long prefetchAt) {
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    /*
+     * 每個keyPrefix當天的號段, 日期改變時換新的Segment, 序列號與id中的日期一致
+     */
+    private class Segment {
+        private final String key;
+        private volatile Block current;
+        private CompletableFuture<Block> next;
+        // 預取線程保留號段時, 換段的線程可能正持有Segment鎖等待, 長度調整另外加鎖
+        private final Object stepLock = new Object();
+        private int step = minStep;
+        private long allocatedAt;
+
+        Segment(String key) {
+            this.key = key;
+        }
+
+        /*
+         * 向Redis保留下一段, 依上一段的使用時間調整長度: 用得太快加倍, 太慢減半
+         */
+        private Block allocate() {
+            int size;
+            synchronized (stepLock) {
+                long now = System.currentTimeMillis();
+                if (allocatedAt > 0) {
+                    long elapsed = now - allocatedAt;
+                    if (elapsed < segmentDuration.toMillis() / 2) {
+                        step = Math.min(step * 2, maxStep);
+                    } else if (elapsed > segmentDuration.toMillis() * 2) {
+                        step = Math.max(step / 2, minStep);
+                    }
+                }
+                allocatedAt = now;
+                size = step;
+            }
+            Long end = stringRedisTemplate.opsForValue().increment(key, size);
+            // 序列號從1開始, INCRBY返回本段的最後一個
+            return new Block(end - size + 1, end + 1, Math.max(1, (long) (size * prefetchRatio)));
+        }
+
+        /*
+         * 非同步預取下一段
+         */
+        private synchronized void prefetch() {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(this::allocate, segmentExecutor);
+            }
+        }
+
+        /*
+         * 目前號段已用完, 換成預取的下一段, 預取失敗或尚未預取時同步保留
+         */
+        private synchronized void advance(Block exhausted) {
+            if (current != exhausted) {
+                return;
+            }
+            CompletableFuture<Block> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    current = future.join();
+                    return;
+                } catch (CompletionException e) {
+                    log.warn("預取號段失敗, 改為同步保留, key: {}", key, e.getCause());
+                }
+            }
+            current = allocate();
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /*
+     * 是否以號段發放序列號, 否則每個id執行一次INCR
+     */
+    private final boolean segmentEnabled;
+
+    /*
+     * 號段長度的上下限
+     */
+    private final int minStep;
+    private final int maxStep;
+
+    /*
+     * 期望每段的使用時間, 依此調整號段長度
+     */
+    private final Duration segmentDuration;
+
+    /*
+     * 剩餘比例低於此值時預取下一段
+     */
+    private final double prefetchRatio;
+
+    /*
+     * 指定的key前綴改以本地生成, 不存取Redis
+     */
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    private final ExecutorService segmentExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+            @Value("${hmdp.id.segment.enabled:false}") boolean segmentEnabled,
+            @Value("${hmdp.id.segment.min-step:100}") int minStep,
+            @Value("${hmdp.id.segment.max-step:10000}") int maxStep,
+            @Value("${hmdp.id.segment.duration:1s}") Duration segmentDuration,
+            @Value("${hmdp.id.segment.prefetch-ratio:0.2}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentEnabled = segmentEnabled;
+        this.minStep = minStep;
+        this.maxStep = Math.max(maxStep, minStep);
+        this.segmentDuration = segmentDuration;
+        this.prefetchRatio = prefetchRatio;
     }
 
     public long nextId(String keyPrefix) {
+        if (snowflakeIdWorker != null && snowflakeIdWorker.supports(keyPrefix)) {
+            try {
+                return snowflakeIdWorker.nextId();
+            } catch (IllegalStateException e) {
+                // 租約失效或時鐘回撥過多, 改以Redis自增生成
+                log.warn("本地生成id失敗, 改以Redis自增生成, keyPrefix: {}, 原因: {}", keyPrefix, e.getMessage());
+            }
+        }
+
         // 生成時間戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -35,9 +211,91 @@ public class RedisIdWorker {
         // 1.獲取當前日期, 精確到天
         String date = now.toLocalDate().toString();
         // 2.自增
-        Long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String key = "icr:" + keyPrefix + ":" + date;
+        long count = segmentEnabled ? nextSegmentCount(keyPrefix, key)
+                : stringRedisTemplate.opsForValue().increment(key);
 
         // 組合並返回
         return timestamp << COUNT_BITS | count;
     }
+
+    /*
+     * 從本地號段取得序列號, 各節點的號段由INCRBY保留互不重疊, 因此同一天內的序列號不重複
+     */
+    private long nextSegmentCount(String keyPrefix, String key) {
+        Segment segment = segments.get(keyPrefix);
+        if (segment == null || !segment.key.equals(key)) {
+            // 換日時捨棄前一天未用完的號段
+            segment = segments.compute(keyPrefix, (k, old) -> old != null && old.key.equals(key) ? old
+                    : new Segment(key));
+        }
+
+        while (true) {
+            Block block = segment.current;
+            if (block != null) {
+                long count = block.cursor.getAndIncrement();
+                if (count < block.end) {
+                    if (block.end - count == block.prefetchAt) {
+                        segment.prefetch();
+                    }
+                    return count;
+                }
+            }
+            segment.advance(block);
+        }
+    }
+
+    /*
+     * 毫秒時間戳對應的id時間: 與 nextId 及 OrderIdDecoder 相同, 以本地時間視為UTC計算秒數
+     */
+    static long timestamp(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000);
+        int offset = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochSecond(second)).getTotalSeconds();
+        return second + offset - BEGIN_TIMESTAMP;
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        segmentExecutor.shutdownNow();
+    }
+
+    /*
+     * 備用id的節點編號, 沒有設定也沒有租借過worker id時無法保證唯一, 拋出異常
+     */
+    private long fallbackNode() {
+        if (fallbackNodeId >= 0) {
+            if (fallbackNodeId >= FALLBACK_CONFIGURED_NODES) {
+                throw new IllegalStateException("hmdp.id.fallback.node-id 需小於 " + FALLBACK_CONFIGURED_NODES);
+            }
+            return FALLBACK_CONFIGURED_NODES + fallbackNodeId;
+        }
+        int workerId = snowflakeIdWorker == null ? -1 : snowflakeIdWorker.getLastWorkerId();
+        if (workerId < 0) {
+            throw new IllegalStateException("沒有可用的備用id節點編號");
+        }
+        return workerId;
+    }
+
+    /*
+     * Redis不可用時在本地生成id, 每個節點每秒最多 2^20 個
+     */
+    public long nextFallbackId() {
+        long node = fallbackNode();
+        while (true) {
+            long state = fallbackState.get();
+            long second = state >>> FALLBACK_SEQUENCE_BITS;
+            // 時鐘回撥時沿用上次的秒數
+            long nowSecond = Math.max(LocalDateTime.now().toEpochSecond(ZoneOffset.UTC), second);
+            long sequence = second == nowSecond ? (state & ((1 << FALLBACK_SEQUENCE_BITS) - 1)) + 1 : 0;
+            if (sequence >= 1 << FALLBACK_SEQUENCE_BITS) {
+                // 本秒已用完, 等待下一秒
+                Thread.onSpinWait();
+                continue;
+            }
+            if (fallbackState.compareAndSet(state, nowSecond << FALLBACK_SEQUENCE_BITS | sequence)) {
+                long timestamp = nowSecond - BEGIN_TIMESTAMP;
+                return timestamp << COUNT_BITS | FALLBACK_FLAG | node << FALLBACK_SEQUENCE_BITS | sequence;
+            }
+        }
+    }
 }
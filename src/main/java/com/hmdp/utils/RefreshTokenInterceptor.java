@@ -6,17 +6,32 @@ import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.dto.UserDTO;
 
 import cn.hutool.core.bean.BeanUtil;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
+    private static final int MAX_RECENT_USERS = 100000;
+
     private StringRedisTemplate stringRedisTemplate;
 
+    /*
+     * 最近驗證過的用戶, Redis不可用時以此判斷登入狀態, 讓秒殺降級流程仍可識別用戶
+     * 每次驗證時重新寫入, 與Redis中token的有效期相同, 在最後一次存取的 LOGIN_USER_TTL 後過期
+     */
+    private final Cache<String, UserDTO> recentUsers = Caffeine.newBuilder()
+            .maximumSize(MAX_RECENT_USERS)
+            .expireAfterWrite(RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES)
+            .build();
+
     public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
@@ -34,11 +49,22 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 使用token取得redis中的用戶
         String key = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash()
-                .entries(key);
+        Map<Object, Object> userMap;
+        try {
+            userMap = stringRedisTemplate.opsForHash()
+                    .entries(key);
+        } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+            // Redis不可用, 使用最近驗證過的用戶
+            UserDTO cached = recentUsers.getIfPresent(token);
+            if (cached != null) {
+                UserHolder.saveUser(cached);
+            }
+            return true;
+        }
 
         if (userMap.isEmpty()) {
-            // 未登入，放行
+            // 未登入或已過期，放行, Redis不可用時也不再視為登入
+            recentUsers.invalidate(token);
             return true;
         }
 
@@ -47,6 +73,7 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         // 已登入，將用戶信息存入 ThreadLocal
         UserHolder.saveUser(userDTO);
+        recentUsers.put(token, userDTO);
 
         // 刷新token有效期
         stringRedisTemplate.expire(key, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
@@ -0,0 +1,350 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * 秒殺請求的准入控制, 依voucherId限流, 超出的請求在執行秒殺腳本前直接拒絕
+ * 先經過本地令牌桶, 再經過可選的Redis滑動窗口 (整個集群共用的上限)
+ * 各優惠券的限流值可在運行時調整, 存放在Redis並透過 pub/sub 同步到其他節點
+ * voucherId來自用戶端, 令牌桶及指標只保留最近使用的 max-vouchers 張, 閒置超過 idle-timeout 即移除, 避免無限增長
+ */
+@Slf4j
+@Component
+public class SeckillAdmissionLimiter implements MessageListener {
+
+    public static final String BUSY_MESSAGE = "搶購人數過多，請稍後再試";
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    /*
+     * 限流值: 本地每秒令牌數、令牌桶容量、Redis窗口內的請求上限, 0 代表不限制
+     */
+    public static class Limit {
+        private final long permitsPerSecond;
+        private final long burst;
+        private final long redisLimit;
+
+        public Limit(long permitsPerSecond, long burst, long redisLimit) {
+            this.permitsPerSecond = Math.max(0, permitsPerSecond);
+            // 容量至少可放行一個請求
+            this.burst = burst > 0 ? burst : Math.max(1, permitsPerSecond);
+            this.redisLimit = Math.max(0, redisLimit);
+        }
+
+        static Limit parse(String value) {
+            // 格式: permitsPerSecond,burst,redisLimit
+            String[] parts = value.split(",");
+            return new Limit(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        String format() {
+            return permitsPerSecond + "," + burst + "," + redisLimit;
+        }
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>(3);
+            map.put("permitsPerSecond", permitsPerSecond);
+            map.put("burst", burst);
+            map.put("redisLimit", redisLimit);
+            return map;
+        }
+    }
+
+    /*
+     * 本地令牌桶, 依經過時間補充令牌
+     */
+    private static class TokenBucket {
+        private final Limit limit;
+        private final Meters meters;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(Limit limit, Meters meters) {
+            this.limit = limit;
+            this.meters = meters;
+            this.tokens = limit.burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(limit.burst, tokens + (now - lastRefill) * limit.permitsPerSecond / 1e9);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+
+    /*
+     * 各優惠券的准入指標
+     */
+    private class Meters {
+        private final Counter admitted;
+        private final Counter rejectedLocal;
+        private final Counter rejectedRedis;
+        private final AtomicLong permitsPerSecond = new AtomicLong();
+        private final AtomicLong burst = new AtomicLong();
+        private final AtomicLong redisLimit = new AtomicLong();
+
+        private final List<Meter> registered;
+
+        Meters(Long voucherId) {
+            String id = voucherId.toString();
+            admitted = meterRegistry.counter("seckill.admission", Tags.of("voucherId", id, "result", "admitted"));
+            rejectedLocal = meterRegistry.counter("seckill.admission", Tags.of("voucherId", id, "result", "local"));
+            rejectedRedis = meterRegistry.counter("seckill.admission", Tags.of("voucherId", id, "result", "redis"));
+            registered = Arrays.asList(admitted, rejectedLocal, rejectedRedis,
+                    gauge(id, "permits-per-second", permitsPerSecond), gauge(id, "burst", burst),
+                    gauge(id, "redis-limit", redisLimit));
+        }
+
+        private Gauge gauge(String id, String type, AtomicLong value) {
+            return Gauge.builder("seckill.admission.limit", value, AtomicLong::get)
+                    .tags("voucherId", id, "type", type)
+                    .register(meterRegistry);
+        }
+
+        void remove() {
+            registered.forEach(meterRegistry::remove);
+        }
+
+        void update(Limit limit) {
+            permitsPerSecond.set(limit.permitsPerSecond);
+            burst.set(limit.burst);
+            redisLimit.set(limit.redisLimit);
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final MeterRegistry meterRegistry;
+
+    private final SeckillLocalStock seckillLocalStock;
+
+    /*
+     * 是否啟用准入控制
+     */
+    @Value("${hmdp.seckill.admission.enabled:true}")
+    private boolean enabled;
+
+    /*
+     * 預設限流值, 可被各優惠券的設定覆蓋
+     */
+    @Value("${hmdp.seckill.admission.permits-per-second:2000}")
+    private long defaultPermitsPerSecond;
+
+    @Value("${hmdp.seckill.admission.burst:2000}")
+    private long defaultBurst;
+
+    @Value("${hmdp.seckill.admission.redis-limit:0}")
+    private long defaultRedisLimit;
+
+    /*
+     * Redis滑動窗口的長度
+     */
+    @Value("${hmdp.seckill.admission.redis-window:1s}")
+    private Duration redisWindow;
+
+    private final Map<Long, Limit> overrides = new ConcurrentHashMap<>();
+
+    private final Cache<Long, TokenBucket> buckets;
+
+    private final Map<Long, Meters> meters = new ConcurrentHashMap<>();
+
+    public SeckillAdmissionLimiter(StringRedisTemplate stringRedisTemplate,
+            RedisMessageListenerContainer listenerContainer, MeterRegistry meterRegistry,
+            SeckillLocalStock seckillLocalStock,
+            @Value("${hmdp.seckill.admission.max-vouchers:1000}") long maxVouchers,
+            @Value("${hmdp.seckill.admission.idle-timeout:10m}") Duration idleTimeout) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.meterRegistry = meterRegistry;
+        this.seckillLocalStock = seckillLocalStock;
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxVouchers)
+                .expireAfterAccess(idleTimeout)
+                .removalListener(this::onBucketRemoved)
+                .executor(Runnable::run)
+                .build();
+    }
+
+    @PostConstruct
+    private void init() {
+        // 訂閱限流值變化
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_LIMIT_CHANNEL));
+
+        // 載入已調整過的限流值
+        try {
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_LIMIT_KEY);
+            entries.forEach((k, v) -> overrides.put(Long.valueOf(k.toString()), Limit.parse(v.toString())));
+        } catch (Exception e) {
+            // 載入失敗時先使用預設值, 之後的調整仍會透過 pub/sub 同步
+            log.warn("載入秒殺限流設定失敗, 使用預設值", e);
+        }
+    }
+
+    /*
+     * 判斷請求是否放行, Redis不可用時只以本地令牌桶限流, 讓請求盡快進入降級流程
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+
+        TokenBucket bucket = buckets.get(voucherId, this::newBucket);
+        Meters m = bucket.meters;
+        Limit limit = bucket.limit;
+
+        // 1. 本地令牌桶
+        if (limit.permitsPerSecond > 0 && !bucket.tryAcquire()) {
+            m.rejectedLocal.increment();
+            return false;
+        }
+
+        // 2. Redis滑動窗口, 已知Redis不可用時跳過, 不必等待連線逾時
+        if (limit.redisLimit > 0 && !seckillLocalStock.isRedisDown()) {
+            try {
+                Long result = stringRedisTemplate.execute(LIMIT_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(limit.redisLimit),
+                        String.valueOf(redisWindow.toMillis()));
+                if (result != null && result == 0) {
+                    m.rejectedRedis.increment();
+                    return false;
+                }
+            } catch (Exception e) {
+                log.warn("Redis限流異常, 僅使用本地限流, voucherId: {}, 原因: {}", voucherId, e.getMessage());
+            }
+        }
+
+        m.admitted.increment();
+        return true;
+    }
+
+    private TokenBucket newBucket(Long voucherId) {
+        Limit limit = getLimit(voucherId);
+        Meters m = meters.computeIfAbsent(voucherId, Meters::new);
+        m.update(limit);
+        return new TokenBucket(limit, m);
+    }
+
+    private void onBucketRemoved(Long voucherId, TokenBucket bucket, RemovalCause cause) {
+        // 調整限流值時只是重建令牌桶, 保留指標; 因容量或閒置被移除時一併移除指標
+        // 移除前已有請求重建令牌桶時保留
+        if (cause.wasEvicted() && buckets.getIfPresent(voucherId) == null
+                && meters.remove(voucherId, bucket.meters)) {
+            bucket.meters.remove();
+        }
+    }
+
+    public Limit getLimit(Long voucherId) {
+        Limit limit = overrides.get(voucherId);
+        return limit != null ? limit : new Limit(defaultPermitsPerSecond, defaultBurst, defaultRedisLimit);
+    }
+
+    /*
+     * 查詢預設及各優惠券目前的限流值
+     */
+    public Map<String, Object> queryLimits() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", enabled);
+        result.put("redisWindow", redisWindow.toMillis());
+        result.put("default", new Limit(defaultPermitsPerSecond, defaultBurst, defaultRedisLimit).toMap());
+        Map<String, Object> vouchers = new LinkedHashMap<>();
+        overrides.forEach((voucherId, limit) -> vouchers.put(voucherId.toString(), limit.toMap()));
+        result.put("vouchers", vouchers);
+        return result;
+    }
+
+    /*
+     * 調整優惠券的限流值, 並通知所有節點
+     */
+    public Limit updateLimit(Long voucherId, Limit limit) {
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_LIMIT_KEY, voucherId.toString(), limit.format());
+        apply(voucherId, limit);
+        publish(voucherId);
+        return limit;
+    }
+
+    /*
+     * 移除優惠券的限流設定, 恢復預設值, 並通知所有節點
+     */
+    public void resetLimit(Long voucherId) {
+        stringRedisTemplate.opsForHash().delete(RedisConstants.SECKILL_LIMIT_KEY, voucherId.toString());
+        apply(voucherId, null);
+        publish(voucherId);
+    }
+
+    private void apply(Long voucherId, Limit limit) {
+        if (limit == null) {
+            overrides.remove(voucherId);
+        } else {
+            overrides.put(voucherId, limit);
+        }
+        // 下一個請求以新的限流值重建令牌桶
+        buckets.invalidate(voucherId);
+    }
+
+    private void publish(Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_LIMIT_CHANNEL, voucherId.toString());
+        } catch (Exception e) {
+            log.warn("發布秒殺限流設定失敗, voucherId: {}", voucherId, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 訊息內容為voucherId, 從Redis重新載入該優惠券的限流值
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long voucherId = Long.valueOf(body);
+            Object value = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_LIMIT_KEY, body);
+            apply(voucherId, value == null ? null : Limit.parse(value.toString()));
+        } catch (NumberFormatException e) {
+            log.warn("無法解析秒殺限流訊息: {}", body);
+        } catch (Exception e) {
+            log.warn("重新載入秒殺限流設定失敗, voucherId: {}", body, e);
+        }
+    }
+}
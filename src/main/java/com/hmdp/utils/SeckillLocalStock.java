@@ -0,0 +1,258 @@
+package com.hmdp.utils;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * Redis不可用時的降級庫存: Redis可用時, 每個節點定期從已預熱秒殺券的庫存中預留一部分 (seckill:lease 的 reserve:{node} 欄位)
+ * 降級期間只售出本節點的預留, 預留在Redis中已扣除, 其他節點及正常流程不會售出, 因此不會超賣, 重放時也不會被資料庫庫存拒絕
+ * - 降級期間的一人一單只在本節點檢查, 訂單寫入本地日誌, 重放到資料庫時由資料庫一人一單檢查作最後保證
+ * - 降級期間下單的用戶保留到該筆訂單重放並寫入Redis購買用戶為止, Redis恢復後正常流程也會先檢查, 避免重複下單
+ * - 重放時扣減預留, 尚未重放的數量不會被歸還; 節點重啟後未重放的數量不再保留, 由重放時改扣庫存及對帳處理
+ * - Redis可用時預留的庫存不會被正常流程售出, 最多少賣 節點數 x max-reserve, 剩餘庫存減少時依 share 逐步歸還
+ */
+@Slf4j
+@Component
+public class SeckillLocalStock {
+
+    private static final DefaultRedisScript<List> RESERVE_SCRIPT;
+    static {
+        RESERVE_SCRIPT = new DefaultRedisScript<>();
+        RESERVE_SCRIPT.setLocation(new ClassPathResource("seckill_reserve.lua"));
+        RESERVE_SCRIPT.setResultType(List.class);
+    }
+
+    private static class Snapshot {
+        private final AtomicInteger stock;
+        private final long beginTime;
+        private final long endTime;
+
+        Snapshot(int stock, long beginTime, long endTime) {
+            this.stock = new AtomicInteger(stock);
+            this.beginTime = beginTime;
+            this.endTime = endTime;
+        }
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final SeckillStateCache seckillStateCache;
+
+    /*
+     * 是否啟用降級, 未啟用時不做預留
+     */
+    private final boolean enabled;
+
+    /*
+     * 預留欄位 reserve:{node}
+     */
+    private final String reserveField;
+
+    /*
+     * 每張秒殺券每個節點最多預留的數量
+     */
+    private final int maxReserve;
+
+    /*
+     * 最多預留剩餘庫存的比例, 應不超過 1 / 節點數
+     */
+    private final double share;
+
+    /*
+     * 預留的有效期, 每次刷新時延長, 節點當機時到期後由其他節點歸還
+     */
+    private final Duration reserveTtl;
+
+    private final Map<Long, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    /*
+     * 降級期間已售出但尚未重放的數量, 刷新時不計入可售數量, 也不可歸還
+     */
+    private final Map<Long, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+    /*
+     * 降級期間在本節點下過單且尚未重放的用戶, 格式 voucherId:userId
+     */
+    private final Set<String> buyers = ConcurrentHashMap.newKeySet();
+
+    /*
+     * Redis是否不可用, 不可用時請求直接走降級流程, 不必等待連線逾時
+     */
+    private volatile boolean redisDown;
+
+    public SeckillLocalStock(StringRedisTemplate stringRedisTemplate, SeckillStateCache seckillStateCache,
+            @Value("${hmdp.seckill.degraded.enabled:false}") boolean enabled,
+            @Value("${hmdp.seckill.degraded.node-id:}") String nodeId,
+            @Value("${hmdp.seckill.degraded.max-reserve:10}") int maxReserve,
+            @Value("${hmdp.seckill.degraded.share:0.1}") double share,
+            @Value("${hmdp.seckill.degraded.reserve-ttl:60s}") Duration reserveTtl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillStateCache = seckillStateCache;
+        this.enabled = enabled;
+        // 未設定時以 pid@host 產生, 每個實例需唯一
+        this.reserveField = "reserve:" + (StrUtil.isBlank(nodeId) ? ManagementFactory.getRuntimeMXBean().getName()
+                : nodeId);
+        this.maxReserve = maxReserve;
+        this.share = share;
+        this.reserveTtl = reserveTtl;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isRedisDown() {
+        return redisDown;
+    }
+
+    /*
+     * 重放訂單日誌時扣減的預留欄位
+     */
+    public String getReserveField() {
+        return reserveField;
+    }
+
+    /*
+     * 用戶在降級期間下過單, 且尚未重放到Redis
+     */
+    public boolean isPendingBuyer(Long voucherId, Long userId) {
+        return !buyers.isEmpty() && buyers.contains(voucherId + ":" + userId);
+    }
+
+    public void markRedisDown() {
+        if (!redisDown) {
+            log.warn("Redis不可用, 秒殺改以本節點預留的庫存降級");
+        }
+        redisDown = true;
+    }
+
+    /*
+     * 以本節點的預留下單, 結果碼與 seckill_batch.lua 相同: 0 成功 1 庫存不足 2 重複下單 3 尚未開始 4 已經結束
+     */
+    public int trySell(Long voucherId, Long userId) {
+        Snapshot snapshot = snapshots.get(voucherId);
+        if (snapshot == null) {
+            return 1;
+        }
+        long now = System.currentTimeMillis();
+        if (now < snapshot.beginTime) {
+            return 3;
+        }
+        if (now > snapshot.endTime) {
+            return 4;
+        }
+        if (!buyers.add(voucherId + ":" + userId)) {
+            return 2;
+        }
+        while (true) {
+            int stock = snapshot.stock.get();
+            if (stock <= 0) {
+                buyers.remove(voucherId + ":" + userId);
+                return 1;
+            }
+            if (snapshot.stock.compareAndSet(stock, stock - 1)) {
+                pending.computeIfAbsent(voucherId, k -> new AtomicInteger()).incrementAndGet();
+                return 0;
+            }
+        }
+    }
+
+    /*
+     * 下單失敗 (例如寫入日誌失敗) 時歸還
+     */
+    public void giveBack(Long voucherId, Long userId) {
+        Snapshot snapshot = snapshots.get(voucherId);
+        if (snapshot != null) {
+            snapshot.stock.incrementAndGet();
+        }
+        replayed(voucherId, userId);
+    }
+
+    /*
+     * 降級期間的訂單已重放並寫入Redis購買用戶 (或被資料庫拒絕), 之後的刷新不再保留, 改由Redis檢查一人一單
+     */
+    public void replayed(Long voucherId, Long userId) {
+        AtomicInteger count = pending.get(voucherId);
+        if (count != null) {
+            count.updateAndGet(n -> Math.max(n - 1, 0));
+        }
+        buyers.remove(voucherId + ":" + userId);
+    }
+
+    /*
+     * 定期補足或歸還預留, 同時作為Redis的健康檢查
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.degraded.refresh-interval:5000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Set<String> ids = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_PREHEATED_KEY, 0, -1);
+            List<String> voucherIds = ids == null ? new ArrayList<>() : new ArrayList<>(ids);
+
+            // 批量查詢秒殺時間
+            List<Object> metas = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (String id : voucherIds) {
+                    conn.hMGet(RedisConstants.SECKILL_META_KEY + id, "begin", "end");
+                }
+                return null;
+            });
+
+            long expireAt = System.currentTimeMillis() + reserveTtl.toMillis();
+            Map<Long, Snapshot> next = new ConcurrentHashMap<>();
+            for (int i = 0; i < voucherIds.size(); i++) {
+                List<?> meta = (List<?>) metas.get(i);
+                if (meta.get(0) == null || meta.get(1) == null) {
+                    continue;
+                }
+                Long voucherId = Long.valueOf(voucherIds.get(i));
+                AtomicInteger sold = pending.get(voucherId);
+                int unreplayed = sold == null ? 0 : sold.get();
+
+                // 在Redis中預留, 返回 {預留數量, 變化量}
+                List<?> result = stringRedisTemplate.execute(RESERVE_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), reserveField, String.valueOf(maxReserve), String.valueOf(share),
+                        String.valueOf(expireAt), String.valueOf(unreplayed));
+                long reserved = ((Number) result.get(0)).longValue();
+                if (((Number) result.get(1)).longValue() < 0) {
+                    // 歸還了庫存, 通知各節點清除售罄標記
+                    seckillStateCache.clear(voucherId);
+                }
+
+                // 可售數量不含尚未重放的訂單 (已在預留中, 重放時才扣減)
+                next.put(voucherId, new Snapshot((int) Math.max(reserved - unreplayed, 0),
+                        Long.parseLong(meta.get(0).toString()), Long.parseLong(meta.get(1).toString())));
+            }
+            snapshots.keySet().retainAll(next.keySet());
+            snapshots.putAll(next);
+
+            if (redisDown) {
+                log.info("Redis已恢復, 秒殺恢復正常流程");
+                redisDown = false;
+            }
+        } catch (Exception e) {
+            markRedisDown();
+        }
+    }
+}
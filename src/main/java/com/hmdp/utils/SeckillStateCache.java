@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * 秒殺優惠券的本地狀態 (售罄/未開始/已結束)
+ * 命中時直接拒絕請求, 不需要任何Redis呼叫; 狀態變化透過 pub/sub 同步到其他節點
+ * voucherId來自用戶端, 最多保留 max-vouchers 張, 只廣播已預熱秒殺券的狀態, 不存在的id不會造成大量訊息
+ */
+@Slf4j
+@Component
+public class SeckillStateCache implements MessageListener {
+
+    public enum State {
+        SOLD_OUT("庫存不足"),
+        NOT_STARTED("秒殺尚未開始"),
+        ENDED("秒殺已經結束"),
+        AVAILABLE(null);
+
+        private final String message;
+
+        State(String message) {
+            this.message = message;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    private static class Entry {
+        private final State state;
+        private final long expireAt;
+
+        Entry(State state, long expireAt) {
+            this.state = state;
+            this.expireAt = expireAt;
+        }
+    }
+
+    /*
+     * 各標記依 expireAt 過期, 超過容量時移除最久未使用的
+     */
+    private final Cache<Long, Entry> states;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /*
+     * 售罄標記的最長保留時間, 避免錯過補庫存的通知而一直拒絕
+     */
+    @Value("${hmdp.seckill.state.sold-out-ttl:30s}")
+    private Duration soldOutTtl;
+
+    /*
+     * 未開始標記的保留時間, 到期後重新交給Redis判斷
+     */
+    @Value("${hmdp.seckill.state.not-started-ttl:1s}")
+    private Duration notStartedTtl;
+
+    public SeckillStateCache(StringRedisTemplate stringRedisTemplate,
+            RedisMessageListenerContainer listenerContainer,
+            @Value("${hmdp.seckill.state.max-vouchers:10000}") long maxVouchers) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.states = Caffeine.newBuilder()
+                .maximumSize(maxVouchers)
+                .expireAfter(new Expiry<Long, Entry>() {
+                    @Override
+                    public long expireAfterCreate(Long key, Entry entry, long currentTime) {
+                        return remaining(entry);
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long key, Entry entry, long currentTime, long currentDuration) {
+                        return remaining(entry);
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    private static long remaining(Entry entry) {
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(entry.expireAt - System.currentTimeMillis(), 0));
+    }
+
+    @PostConstruct
+    private void init() {
+        // 訂閱狀態變化
+        listenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_STATE_CHANNEL));
+    }
+
+    /*
+     * 查詢本地狀態, 無標記或標記已過期時返回null
+     */
+    public State get(Long voucherId) {
+        Entry entry = states.getIfPresent(voucherId);
+        return entry == null ? null : entry.state;
+    }
+
+    /*
+     * 標記狀態, 本地狀態發生變化時才廣播, 避免每次拒絕都發布訊息
+     * 未預熱的秒殺券 (例如不存在的id) 只在本地標記, 不廣播
+     */
+    public void mark(Long voucherId, State state) {
+        Entry old = states.asMap().put(voucherId, newEntry(state));
+        if ((old == null || old.state != state) && isPreheated(voucherId)) {
+            publish(voucherId, state);
+        }
+    }
+
+    /*
+     * 清除標記 (例如補庫存), 並通知所有節點
+     */
+    public void clear(Long voucherId) {
+        states.invalidate(voucherId);
+        publish(voucherId, State.AVAILABLE);
+    }
+
+    private boolean isPreheated(Long voucherId) {
+        try {
+            return stringRedisTemplate.opsForZSet().score(RedisConstants.SECKILL_PREHEATED_KEY,
+                    voucherId.toString()) != null;
+        } catch (Exception e) {
+            // 無法確認時不廣播, 其他節點會在TTL後自行更新
+            log.warn("查詢秒殺券是否已預熱失敗, voucherId: {}", voucherId, e);
+            return false;
+        }
+    }
+
+    private void publish(Long voucherId, State state) {
+        try {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_STATE_CHANNEL, voucherId + ":" + state.name());
+        } catch (Exception e) {
+            // 廣播失敗不影響本地狀態, 其他節點會在TTL後自行更新
+            log.warn("發布秒殺狀態失敗, voucherId: {}", voucherId, e);
+        }
+    }
+
+    private Entry newEntry(State state) {
+        long ttl;
+        switch (state) {
+            case SOLD_OUT:
+                ttl = soldOutTtl.toMillis();
+                break;
+            case NOT_STARTED:
+                ttl = notStartedTtl.toMillis();
+                break;
+            default:
+                ttl = Long.MAX_VALUE - System.currentTimeMillis();
+        }
+        return new Entry(state, System.currentTimeMillis() + ttl);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 訊息格式 voucherId:STATE
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        try {
+            Long voucherId = Long.valueOf(body.substring(0, index));
+            State state = State.valueOf(body.substring(index + 1));
+            if (state == State.AVAILABLE) {
+                states.invalidate(voucherId);
+            } else {
+                states.put(voucherId, newEntry(state));
+            }
+        } catch (IllegalArgumentException e) {
+            log.warn("無法解析秒殺狀態訊息: {}", body);
+        }
+    }
+}
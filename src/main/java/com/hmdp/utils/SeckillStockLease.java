@@ -0,0 +1,207 @@
+package com.hmdp.utils;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * 秒殺庫存租約: 每個節點一次從Redis租借一段庫存, 在本地計數器中扣減, 本地沒有庫存時不必呼叫Redis
+ * 下單時仍由Redis檢查一人一單, 並在同一個腳本中扣減本節點在Redis的租約數量
+ *
+ * 超賣保證:
+ * - 庫存只在租借時從 seckill:stock 轉移到本節點的 seckill:lease:{id}:{node}, 每筆訂單扣減該key, 兩者都在Redis腳本內完成,
+ *   因此成功下單數不會超過原始庫存; 本地計數器只用來減少Redis呼叫, 不作為是否可下單的依據
+ * - 租約被歸還或收回後, 本地計數器殘留的數量在下單時會因Redis的key已刪除而被拒絕
+ * 共用key:
+ * - 各節點共用的 seckill:lease:{id} 只記錄租約到期時間, 只在租借, 歸還及收回時存取, 下單時不存取
+ * - 每筆訂單仍需一次Redis呼叫: 一人一單是全局檢查, 且必須與扣減租約及寫入訂單Stream在同一個腳本中原子完成,
+ *   無法只在本地判斷
+ * 少賣情況:
+ * - 租出但尚未售出的庫存, 在租約到期或秒殺結束前其他節點無法售出, 最多為 節點數 x chunk
+ * - 節點當機時, 其租約在 2 x lease-ttl 後由其他節點租借時收回
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> LEASE_ORDER_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        LEASE_ORDER_SCRIPT = new DefaultRedisScript<>();
+        LEASE_ORDER_SCRIPT.setLocation(new ClassPathResource("seckill_lease_order.lua"));
+        LEASE_ORDER_SCRIPT.setResultType(Long.class);
+    }
+
+    /*
+     * 租約已被收回, 需要重新租借
+     */
+    private static final int LEASE_REVOKED = 5;
+
+    private static class Lease {
+        private final AtomicLong remaining = new AtomicLong();
+        private volatile long expireAt;
+        private volatile long retryAt;
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String nodeId;
+
+    private final int chunk;
+
+    private final Duration leaseTtl;
+
+    private final Duration retryInterval;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    public SeckillStockLease(StringRedisTemplate stringRedisTemplate,
+            @Value("${hmdp.seckill.lease.node-id:}") String nodeId,
+            @Value("${hmdp.seckill.lease.chunk:50}") int chunk,
+            @Value("${hmdp.seckill.lease.ttl:10s}") Duration leaseTtl,
+            @Value("${hmdp.seckill.lease.retry-interval:200ms}") Duration retryInterval) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // 未設定時以 pid@host 產生, 每個實例需唯一
+        this.nodeId = StrUtil.isBlank(nodeId) ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+        this.chunk = chunk;
+        this.leaseTtl = leaseTtl;
+        this.retryInterval = retryInterval;
+    }
+
+    /*
+     * 以租約下單, 結果碼與 seckill_batch.lua 相同: 0 成功 1 庫存不足 2 重複下單 3 尚未開始 4 已經結束
+     */
+    public int purchase(Long voucherId, Long userId, long orderId, int shards, String statusKey, long statusTtl,
+            long payTimeout) {
+        // 租約被收回時重新租借一次
+        for (int attempt = 0; attempt < 2; attempt++) {
+            // 1. 從本地計數器扣減, 沒有庫存時向Redis租借
+            Lease lease = take(voucherId);
+            if (lease == null) {
+                return 1;
+            }
+
+            // 2. 由Redis檢查一人一單並扣減租約
+            Long result = stringRedisTemplate.execute(LEASE_ORDER_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), nodeId,
+                    String.valueOf(shards), statusKey, String.valueOf(statusTtl), String.valueOf(payTimeout));
+            int r = result == null ? 1 : result.intValue();
+            if (r == 0) {
+                return 0;
+            }
+            if (r == LEASE_REVOKED) {
+                leases.remove(voucherId, lease);
+                continue;
+            }
+
+            // 未售出, 放回本地計數器
+            lease.remaining.incrementAndGet();
+            if (r == 4) {
+                // 秒殺已結束, 歸還剩餘庫存
+                release(voucherId);
+            }
+            return r;
+        }
+        return 1;
+    }
+
+    private Lease take(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        while (true) {
+            long n = lease.remaining.get();
+            if (n > 0) {
+                if (lease.remaining.compareAndSet(n, n - 1)) {
+                    return lease;
+                }
+                continue;
+            }
+
+            // 本地沒有庫存, 同一張優惠券只由一個線程向Redis租借
+            synchronized (lease) {
+                if (lease.remaining.get() > 0) {
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                if (now < lease.retryAt) {
+                    return null;
+                }
+                long taken = acquire(voucherId, now);
+                if (taken <= 0) {
+                    // 已無庫存可租借, 一段時間內直接拒絕 (其他節點歸還後可再租借)
+                    lease.retryAt = now + retryInterval.toMillis();
+                    return null;
+                }
+                lease.expireAt = now + leaseTtl.toMillis();
+                lease.remaining.addAndGet(taken);
+            }
+        }
+    }
+
+    private long acquire(Long voucherId, long now) {
+        // Redis中的到期時間為本地的兩倍, 節點正常運作時會先自行歸還
+        Long taken = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                "acquire", voucherId.toString(), nodeId, String.valueOf(chunk),
+                String.valueOf(now + leaseTtl.toMillis() * 2));
+        return taken == null ? 0 : taken;
+    }
+
+    /*
+     * 歸還本節點尚未售出的庫存
+     */
+    public long release(Long voucherId) {
+        Lease lease = leases.remove(voucherId);
+        if (lease != null) {
+            lease.remaining.set(0);
+        }
+        Long returned = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                "release", voucherId.toString(), nodeId);
+        return returned == null ? 0 : returned;
+    }
+
+    /*
+     * 歸還已到期的租約
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.lease.sweep-interval:1000}")
+    public void releaseExpired() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.expireAt > 0 && lease.expireAt <= now) {
+                try {
+                    long returned = release(voucherId);
+                    log.debug("歸還到期的庫存租約, voucherId: {}, 數量: {}", voucherId, returned);
+                } catch (Exception e) {
+                    log.warn("歸還庫存租約失敗, voucherId: {}", voucherId, e);
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    private void releaseAll() {
+        for (Long voucherId : leases.keySet()) {
+            try {
+                release(voucherId);
+            } catch (Exception e) {
+                log.warn("停機時歸還庫存租約失敗, voucherId: {}", voucherId, e);
+            }
+        }
+    }
+}
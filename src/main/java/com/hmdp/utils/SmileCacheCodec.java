@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/*
+ * Smile二進位編碼: 與JSON相同的資料模型, 數字以二進位儲存, 重複的欄位名稱以回參照表示
+ */
+@Component
+public class SmileCacheCodec extends JacksonCacheCodec {
+
+    public SmileCacheCodec() {
+        super(new SmileFactory());
+    }
+
+    @Override
+    public byte id() {
+        return 2;
+    }
+
+    @Override
+    public String name() {
+        return "smile";
+    }
+}
@@ -0,0 +1,237 @@
+package com.hmdp.utils;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+
+/*
+ * 本地id生成器, 只在啟動及續約時存取Redis
+ * 高32位與 RedisIdWorker 相同為開始時間戳後的秒數 (本地時間視為UTC), 與Redis自增的id可依大小排序, 訂單狀態的分桶及分表也一致
+ * 低32位: 0 | 1 | 10位worker id | 10位毫秒 | 10位序號
+ * - 最高位為0, 不與本地備用id重複; 次高位為1, 不與Redis自增的序列號重複
+ * - 每個worker每毫秒最多 1024 個
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    private static final DefaultRedisScript<Long> WORKER_SCRIPT;
+    static {
+        WORKER_SCRIPT = new DefaultRedisScript<>();
+        WORKER_SCRIPT.setLocation(new ClassPathResource("id_worker.lua"));
+        WORKER_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final long LOCAL_FLAG = 1L << 30;
+    private static final int WORKER_BITS = 10;
+    private static final int MILLIS_BITS = 10;
+    private static final int SEQUENCE_BITS = 10;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String nodeId;
+
+    /*
+     * 使用本地生成的key前綴
+     */
+    private final Set<String> prefixes;
+
+    private final Duration leaseTtl;
+
+    /*
+     * 同一毫秒的序號用完時, 可預借之後的毫秒數, 超過則等待
+     */
+    private final long maxBorrowMillis;
+
+    /*
+     * 時鐘回撥時最多等待的時間, 超過則拋出異常, 由 RedisIdWorker 改以Redis自增生成
+     */
+    private final long maxWaitMillis;
+
+    /*
+     * 沒有本地生成的key前綴時也租借worker id, 供Redis不可用時的備用id (RedisIdWorker.nextFallbackId) 作為節點編號
+     */
+    @Value("${hmdp.id.local.lease-worker:false}")
+    private boolean leaseWorker;
+
+    private volatile int workerId = -1;
+
+    /*
+     * 最近一次租借到的worker id, 租約失效後仍保留, 備用id與本地id的位元不同, 不會重複
+     */
+    private volatile int lastWorkerId = -1;
+
+    /*
+     * 租約在本地的有效期限, 以續約前的時間計算, 早於Redis中的到期時間, 之後的毫秒不再生成id
+     */
+    private volatile long validUntil;
+
+    /*
+     * 高位為最後生成id的毫秒 (不會倒退), 低位為該毫秒內的序號
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate,
+            @Value("${hmdp.id.local.node-id:}") String nodeId,
+            @Value("${hmdp.id.local.prefixes:}") Set<String> prefixes,
+            @Value("${hmdp.id.local.lease-ttl:30s}") Duration leaseTtl,
+            @Value("${hmdp.id.local.max-borrow:5ms}") Duration maxBorrow,
+            @Value("${hmdp.id.local.max-wait:1s}") Duration maxWait) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // 未設定時以 pid@host 產生, 每個實例需唯一
+        this.nodeId = StrUtil.isBlank(nodeId) ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+        this.prefixes = prefixes == null ? Collections.emptySet() : prefixes;
+        this.leaseTtl = leaseTtl;
+        this.maxBorrowMillis = maxBorrow.toMillis();
+        this.maxWaitMillis = maxWait.toMillis();
+    }
+
+    public boolean supports(String keyPrefix) {
+        return prefixes.contains(keyPrefix);
+    }
+
+    public int getLastWorkerId() {
+        return lastWorkerId;
+    }
+
+    private boolean isActive() {
+        return leaseWorker || !prefixes.isEmpty();
+    }
+
+    @PostConstruct
+    private void init() {
+        if (!isActive()) {
+            return;
+        }
+        try {
+            lease();
+        } catch (Exception e) {
+            // 由續約排程重試, 期間改以Redis自增生成
+            log.error("租借worker id失敗", e);
+        }
+    }
+
+    /*
+     * 向Redis租借一個未被使用的worker id, 從節點id的雜湊值開始嘗試, 減少多個節點競爭同一個
+     */
+    private synchronized void lease() {
+        long now = System.currentTimeMillis();
+        Long id = stringRedisTemplate.execute(WORKER_SCRIPT, Collections.emptyList(),
+                "acquire", nodeId, String.valueOf(leaseTtl.toMillis()), String.valueOf(MAX_WORKERS),
+                String.valueOf(Math.floorMod(nodeId.hashCode(), MAX_WORKERS)));
+        if (id == null || id < 0) {
+            throw new IllegalStateException("沒有可用的worker id");
+        }
+        workerId = id.intValue();
+        lastWorkerId = workerId;
+        validUntil = now + leaseTtl.toMillis();
+        log.info("租借worker id: {}, node: {}", workerId, nodeId);
+    }
+
+    /*
+     * 定期續約, 續約失敗 (例如長時間停頓後已被收回) 時重新租借
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id.local.heartbeat-interval:10000}")
+    public void heartbeat() {
+        if (!isActive()) {
+            return;
+        }
+        try {
+            int id = workerId;
+            if (id < 0) {
+                lease();
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(WORKER_SCRIPT, Collections.emptyList(),
+                    "renew", nodeId, String.valueOf(id), String.valueOf(leaseTtl.toMillis()));
+            if (renewed != null && renewed == 1) {
+                validUntil = now + leaseTtl.toMillis();
+                return;
+            }
+            log.warn("worker id已被收回, 重新租借, workerId: {}", id);
+            workerId = -1;
+            lease();
+        } catch (Exception e) {
+            log.warn("worker id續約失敗", e);
+        }
+    }
+
+    public long nextId() {
+        while (true) {
+            int worker = workerId;
+            long now = System.currentTimeMillis();
+            long s = state.get();
+            long last = s >>> SEQUENCE_BITS;
+            long sequence = s & MAX_SEQUENCE;
+
+            long millis;
+            long next;
+            if (now > last) {
+                millis = now;
+                next = 0;
+            } else if (sequence < MAX_SEQUENCE) {
+                // 同一毫秒或時鐘回撥, 沿用最後的毫秒
+                millis = last;
+                next = sequence + 1;
+            } else {
+                // 本毫秒已用完, 預借下一毫秒
+                millis = last + 1;
+                next = 0;
+            }
+
+            long ahead = millis - now;
+            if (ahead > maxBorrowMillis) {
+                if (ahead > maxWaitMillis) {
+                    throw new IllegalStateException("時鐘回撥過多: " + ahead + "ms");
+                }
+                // 等待時鐘追上
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            if (worker < 0 || millis >= validUntil) {
+                throw new IllegalStateException("worker id租約已失效");
+            }
+
+            if (state.compareAndSet(s, millis << SEQUENCE_BITS | next)) {
+                long timestamp = RedisIdWorker.timestamp(millis);
+                return timestamp << RedisIdWorker.COUNT_BITS | LOCAL_FLAG
+                        | (long) worker << (MILLIS_BITS + SEQUENCE_BITS)
+                        | (millis % 1000) << SEQUENCE_BITS | next;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void release() {
+        int id = workerId;
+        if (id < 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(WORKER_SCRIPT, Collections.emptyList(), "release", nodeId, String.valueOf(id));
+            workerId = -1;
+        } catch (Exception e) {
+            log.warn("歸還worker id失敗, workerId: {}", id, e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.stereotype.Component;
+
+import cn.hutool.json.JSONUtil;
+
+/*
+ * 將即將從消息Queue刪除的訊息寫入本地檔案留存
+ * 每個Queue每天一個檔案, 每行一筆JSON, 只追加不修改
+ */
+@Component
+public class StreamArchiver {
+
+    /*
+     * 留存檔案目錄
+     */
+    @Value("${hmdp.seckill.order.archive.dir:./data/stream-archive}")
+    private String dir;
+
+    /*
+     * 寫入一批訊息並同步到磁碟, 返回後才可以從Redis刪除
+     */
+    public void append(String queueName, List<MapRecord<String, Object, Object>> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("stream", queueName);
+            line.put("id", record.getId().getValue());
+            record.getValue().forEach((k, v) -> line.put(k.toString(), v));
+            sb.append(JSONUtil.toJsonStr(line)).append('\n');
+        }
+
+        Path path = Paths.get(dir, queueName + "-" + LocalDate.now() + ".log");
+        Files.createDirectories(path.getParent());
+        try (FileOutputStream out = new FileOutputStream(path.toFile(), true)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+-- 參數列表
+-- 操作: acquire 租借worker id, renew 續約, release 歸還
+local op = ARGV[1]
+-- 節點id
+local node = ARGV[2]
+
+-- 數據key前綴, id:worker:{n} 的值為持有的節點id
+local prefix = 'id:worker:'
+
+if (op == 'acquire') then
+    -- 租約時間(毫秒)、worker id數量、開始嘗試的編號
+    local ttl = tonumber(ARGV[3])
+    local workers = tonumber(ARGV[4])
+    local start = tonumber(ARGV[5])
+    for i = 0, workers - 1 do
+        local workerId = (start + i) % workers
+        local key = prefix .. workerId
+        local owner = redis.call('get', key)
+        if (owner == false or owner == node) then
+            redis.call('set', key, node, 'PX', ttl)
+            return workerId
+        end
+    end
+    -- 所有worker id都已被租借
+    return -1
+end
+
+local key = prefix .. ARGV[3]
+if (redis.call('get', key) ~= node) then
+    -- 已被收回
+    return 0
+end
+
+if (op == 'renew') then
+    redis.call('pexpire', key, tonumber(ARGV[4]))
+else
+    redis.call('del', key)
+end
+return 1
@@ -0,0 +1,133 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 同一次呼叫會存取多張優惠券及訂單消息Queue分片, 無法以hash tag放進同一個slot
+-- 秒殺腳本, 單張優惠券時以一張的批次呼叫, 檢查邏輯只有這一份
+-- 參數列表
+-- 用戶id
+local userId = ARGV[1]
+-- 模式: all 全部成功才扣減, best 能搶到的都扣減
+local atomic = ARGV[2] == 'all'
+-- 訂單消息Queue分片數
+local shards = tonumber(ARGV[3])
+-- 訂單狀態保留秒數
+local statusTtl = tonumber(ARGV[4])
+-- 付款期限(毫秒), 0 代表不自動取消
+local payTimeout = tonumber(ARGV[5]) or 0
+-- 之後每張優惠券三個參數: 優惠券id、訂單id、訂單狀態key
+local count = (#ARGV - 5) / 3
+
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+-- 檢查一張優惠券, 返回結果碼及要扣減的庫存key
+-- 0: 可購買 1: 庫存不足 2: 重複下單 3: 尚未開始 4: 已經結束
+local function check(voucherId)
+    local stockKey = 'seckill:stock:' .. voucherId
+    local meta = redis.call('hmget', 'seckill:meta:' .. voucherId, 'segments', 'begin', 'end', 'buyers')
+    local segments = tonumber(meta[1]) or 1
+    local beginTime = tonumber(meta[2])
+    local endTime = tonumber(meta[3])
+
+    -- 1. 檢查秒殺時間
+    if (beginTime ~= nil and nowMillis < beginTime) then
+        return 3
+    end
+    if (endTime ~= nil and nowMillis > endTime) then
+        return 4
+    end
+
+    -- 2. 檢查庫存是否充足
+    if (segments > 1) then
+        local soldOutKey = 'seckill:soldout:' .. voucherId
+        if (redis.call('exists', soldOutKey) == 1) then
+            return 1
+        end
+
+        local start = tonumber(userId) % segments
+        local segmentKey = nil
+        for i = 0, segments - 1 do
+            local key = stockKey .. ':' .. ((start + i) % segments)
+            if ((tonumber(redis.call('get', key)) or 0) > 0) then
+                segmentKey = key
+                break
+            end
+        end
+
+        if (segmentKey == nil) then
+            redis.call('set', soldOutKey, '1')
+            return 1
+        end
+        stockKey = segmentKey
+    elseif ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+        return 1
+    end
+
+    -- 3. 檢查用戶是否下過單
+    if (meta[4] == 'bitmap') then
+        if (redis.call('getbit', 'seckill:buyers:' .. voucherId, userId) == 1) then
+            return 2
+        end
+    elseif (redis.call('sismember', 'seckill:order:' .. voucherId, userId) == 1) then
+        return 2
+    end
+
+    return 0, stockKey, meta[4] == 'bitmap'
+end
+
+-- script
+-- 1. 逐張檢查, 不做任何扣減
+local results = {}
+local stockKeys = {}
+local bitmaps = {}
+local failed = false
+for i = 1, count do
+    local voucherId = ARGV[5 + (i - 1) * 3 + 1]
+    results[i], stockKeys[i], bitmaps[i] = check(voucherId)
+    if (results[i] ~= 0) then
+        failed = true
+    end
+end
+
+-- 2. all模式有任一張失敗, 其餘可購買的標記為5 (因其他優惠券失敗而未購買)
+if (atomic and failed) then
+    for i = 1, count do
+        if (results[i] == 0) then
+            results[i] = 5
+        end
+    end
+    return results
+end
+
+-- 3. 扣減庫存、記錄用戶下單、發送消息、記錄訂單狀態
+for i = 1, count do
+    if (results[i] == 0) then
+        local base = 5 + (i - 1) * 3
+        local voucherId = ARGV[base + 1]
+        local orderId = ARGV[base + 2]
+        local statusKey = ARGV[base + 3]
+
+        redis.call('incrby', stockKeys[i], -1)
+
+        if (bitmaps[i]) then
+            redis.call('setbit', 'seckill:buyers:' .. voucherId, userId, 1)
+        else
+            redis.call('sadd', 'seckill:order:' .. voucherId, userId)
+        end
+
+        local streamKey = 'stream.orders'
+        if (shards > 1) then
+            streamKey = streamKey .. '.' .. (tonumber(voucherId) % shards)
+        end
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+
+        redis.call('hset', statusKey, orderId, 'queued')
+        redis.call('expire', statusKey, statusTtl)
+
+        if (payTimeout > 0) then
+            redis.call('zadd', 'seckill:order:timeout', nowMillis + payTimeout,
+                orderId .. ':' .. voucherId .. ':' .. userId)
+        end
+    end
+end
+
+return results
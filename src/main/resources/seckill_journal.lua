@@ -0,0 +1,63 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 重放時同時寫入全域的延遲Queue, 與優惠券的key不在同一個slot
+-- 參數列表
+-- 優惠券id
+local voucherId = ARGV[1]
+-- 用戶id
+local userId = ARGV[2]
+-- 訂單id
+local orderId = ARGV[3]
+-- 付款期限(毫秒), 0 代表不自動取消, 從重放時開始計算
+local payTimeout = tonumber(ARGV[4]) or 0
+-- 本節點的預留欄位 reserve:{node}, 降級期間的訂單從預留中售出
+local reserveField = ARGV[5]
+
+-- 數據key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local buyersKey = 'seckill:buyers:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local leaseKey = 'seckill:lease:' .. voucherId
+
+local meta = redis.call('hmget', metaKey, 'segments', 'buyers')
+local segments = tonumber(meta[1]) or 1
+local bitmap = meta[2] == 'bitmap'
+
+-- 降級期間的訂單已寫入資料庫, 補記到Redis
+-- 1. 已記錄過的用戶不重複扣減 (例如重放到一半重啟)
+if (bitmap) then
+    if (redis.call('setbit', buyersKey, userId, 1) == 1) then
+        return 0
+    end
+elseif (redis.call('sadd', orderKey, userId) == 0) then
+    return 0
+end
+
+-- 2. 加入未付款取消的延遲Queue
+if (payTimeout > 0) then
+    local now = redis.call('time')
+    local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+    redis.call('zadd', 'seckill:order:timeout', nowMillis + payTimeout, orderId .. ':' .. voucherId .. ':' .. userId)
+end
+
+-- 3. 扣減本節點的預留, 預留已被收回 (例如節點當機後到期) 時改扣減庫存
+if ((tonumber(redis.call('hget', leaseKey, reserveField)) or 0) > 0) then
+    redis.call('hincrby', leaseKey, reserveField, -1)
+    return 1
+end
+
+-- 4. 扣減庫存, 已無庫存時不扣成負數, 差異由對帳處理
+if (segments > 1) then
+    for i = 0, segments - 1 do
+        local key = stockKey .. ':' .. i
+        if ((tonumber(redis.call('get', key)) or 0) > 0) then
+            redis.call('incrby', key, -1)
+            return 1
+        end
+    end
+elseif ((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 1
+end
+return 1
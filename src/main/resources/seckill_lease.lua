@@ -0,0 +1,103 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 參數列表
+-- 操作: acquire 租借庫存, release 歸還本節點的租約
+local op = ARGV[1]
+-- 優惠券id
+local voucherId = ARGV[2]
+-- 節點id
+local node = ARGV[3]
+
+-- 數據key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+-- 租約key, 欄位 {node}:exp 為各節點租約的到期時間(毫秒), 只在租借及歸還時存取
+-- 各節點尚未售出的數量在 seckill:lease:{id}:{node}, 下單時只扣減本節點的key, 不存取共用的租約key
+-- 降級預留 (reserve:{node}) 也記錄在租約key, 數量直接存在欄位中
+local leaseKey = 'seckill:lease:' .. voucherId
+
+local segments = tonumber(redis.call('hget', metaKey, 'segments')) or 1
+
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+-- 歸還庫存, 分段時放回第一段
+local function giveBack(n)
+    if (segments > 1) then
+        redis.call('incrby', stockKey .. ':0', n)
+        redis.call('del', soldOutKey)
+    else
+        redis.call('incrby', stockKey, n)
+    end
+end
+
+-- 歸還節點尚未售出的數量並刪除租約
+local function releaseNode(id)
+    local n
+    if (string.sub(id, 1, 8) == 'reserve:') then
+        n = tonumber(redis.call('hget', leaseKey, id)) or 0
+    else
+        local nodeLeaseKey = leaseKey .. ':' .. id
+        n = tonumber(redis.call('get', nodeLeaseKey)) or 0
+        redis.call('del', nodeLeaseKey)
+    end
+    redis.call('hdel', leaseKey, id, id .. ':exp')
+    if (n > 0) then
+        giveBack(n)
+    end
+    return n
+end
+
+if (op == 'release') then
+    return releaseNode(node)
+end
+
+-- acquire
+-- 每次租借的數量
+local chunk = tonumber(ARGV[4])
+-- 租約到期時間(毫秒), 到期後其他節點可收回
+local expireAt = tonumber(ARGV[5])
+
+-- 1. 收回其他節點已到期的租約 (例如節點當機)
+local fields = redis.call('hgetall', leaseKey)
+for i = 1, #fields, 2 do
+    local field = fields[i]
+    if (string.sub(field, -4) == ':exp' and tonumber(fields[i + 1]) < nowMillis) then
+        releaseNode(string.sub(field, 1, -5))
+    end
+end
+
+-- 2. 從庫存扣減最多chunk個
+local taken = 0
+if (segments > 1) then
+    for i = 0, segments - 1 do
+        local key = stockKey .. ':' .. i
+        local stock = tonumber(redis.call('get', key)) or 0
+        if (stock > 0) then
+            local n = math.min(stock, chunk - taken)
+            redis.call('decrby', key, n)
+            taken = taken + n
+            if (taken >= chunk) then
+                break
+            end
+        end
+    end
+else
+    local stock = tonumber(redis.call('get', stockKey)) or 0
+    taken = math.min(math.max(stock, 0), chunk)
+    if (taken > 0) then
+        redis.call('decrby', stockKey, taken)
+    end
+end
+
+-- 3. 記錄租約並延長到期時間
+local nodeLeaseKey = leaseKey .. ':' .. node
+if (taken > 0) then
+    redis.call('incrby', nodeLeaseKey, taken)
+end
+if (redis.call('exists', nodeLeaseKey) == 1) then
+    redis.call('hset', leaseKey, node .. ':exp', expireAt)
+end
+
+return taken
@@ -0,0 +1,84 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 下單時同時寫入訂單消息Queue分片, 與優惠券的key不在同一個slot
+-- 參數列表
+-- 優惠券id
+local voucherId = ARGV[1]
+-- 用戶id
+local userId = ARGV[2]
+-- 訂單id
+local orderId = ARGV[3]
+-- 節點id
+local node = ARGV[4]
+-- 訂單消息Queue分片數
+local shards = tonumber(ARGV[5])
+-- 訂單狀態key與保留秒數
+local statusKey = ARGV[6]
+local statusTtl = tonumber(ARGV[7])
+-- 付款期限(毫秒), 0 代表不自動取消
+local payTimeout = tonumber(ARGV[8]) or 0
+
+-- 數據key
+local orderKey = 'seckill:order:' .. voucherId
+local buyersKey = 'seckill:buyers:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+-- 本節點的租約剩餘數量, 只有本節點存取, 不使用各節點共用的 seckill:lease:{id}
+local nodeLeaseKey = 'seckill:lease:' .. voucherId .. ':' .. node
+local streamKey = 'stream.orders'
+if (shards > 1) then
+    streamKey = streamKey .. '.' .. (tonumber(voucherId) % shards)
+end
+
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'buyers')
+local beginTime = tonumber(meta[1])
+local endTime = tonumber(meta[2])
+local bitmap = meta[3] == 'bitmap'
+
+-- script
+-- 1. 檢查秒殺時間
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+if (beginTime ~= nil and nowMillis < beginTime) then
+    return 3
+end
+if (endTime ~= nil and nowMillis > endTime) then
+    return 4
+end
+
+-- 2. 檢查本節點的租約是否還有庫存, 租約已被收回時返回5
+if ((tonumber(redis.call('get', nodeLeaseKey)) or 0) <= 0) then
+    return 5
+end
+
+-- 3. 檢查用戶是否下過單
+if (bitmap) then
+    if (redis.call('getbit', buyersKey, userId) == 1) then
+        return 2
+    end
+elseif (redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+
+-- 4. 扣減租約
+redis.call('decr', nodeLeaseKey)
+
+-- 5. 記錄用戶下單
+if (bitmap) then
+    redis.call('setbit', buyersKey, userId, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+
+-- 6. 發送消息到消息Queue中
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+
+-- 7. 記錄訂單狀態為排隊中
+redis.call('hset', statusKey, orderId, 'queued')
+redis.call('expire', statusKey, statusTtl)
+
+-- 8. 加入未付款取消的延遲Queue
+if (payTimeout > 0) then
+    redis.call('zadd', 'seckill:order:timeout', nowMillis + payTimeout, orderId .. ':' .. voucherId .. ':' .. userId)
+end
+
+return 0
@@ -0,0 +1,31 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 參數列表
+-- 優惠券id
+local voucherId = ARGV[1]
+-- 每個時間窗口允許的請求數
+local limit = tonumber(ARGV[2])
+-- 時間窗口(毫秒)
+local window = tonumber(ARGV[3])
+
+-- 以目前與上一個固定窗口的計數估算滑動窗口, 每次請求只需一次INCR
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+local index = math.floor(nowMillis / window)
+local elapsed = (nowMillis % window) / window
+
+-- 數據key
+local currentKey = 'seckill:limit:window:' .. voucherId .. ':' .. index
+local previousKey = 'seckill:limit:window:' .. voucherId .. ':' .. (index - 1)
+
+local current = tonumber(redis.call('get', currentKey)) or 0
+local previous = tonumber(redis.call('get', previousKey)) or 0
+
+-- 上一個窗口依剩餘比例計入
+if (previous * (1 - elapsed) + current >= limit) then
+    return 0
+end
+
+redis.call('incr', currentKey)
+redis.call('pexpire', currentKey, window * 2)
+return 1
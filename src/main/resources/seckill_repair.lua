@@ -0,0 +1,62 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 參數列表
+-- 優惠券id
+local voucherId = ARGV[1]
+-- 對帳時讀到的Redis庫存
+local expectedStock = tonumber(ARGV[2])
+-- 修正後的庫存 (以資料庫為準)
+local targetStock = tonumber(ARGV[3])
+
+-- 數據key
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+local buyersKey = 'seckill:buyers:' .. voucherId
+
+local meta = redis.call('hmget', metaKey, 'segments', 'buyers')
+local segments = tonumber(meta[1]) or 1
+local bitmap = meta[2] == 'bitmap'
+
+-- 1. 計算目前庫存, 與對帳時不一致代表期間有新的秒殺, 放棄修正
+local current = 0
+if (segments > 1) then
+    for i = 0, segments - 1 do
+        current = current + (tonumber(redis.call('get', stockKey .. ':' .. i)) or 0)
+    end
+else
+    current = tonumber(redis.call('get', stockKey)) or 0
+end
+if (current ~= expectedStock) then
+    return 0
+end
+
+-- 2. 重設庫存, 分段時平均拆分
+if (segments > 1) then
+    for i = 0, segments - 1 do
+        local segmentStock = math.floor(targetStock / segments)
+        if (i < targetStock % segments) then
+            segmentStock = segmentStock + 1
+        end
+        redis.call('set', stockKey .. ':' .. i, segmentStock)
+    end
+else
+    redis.call('set', stockKey, targetStock)
+end
+
+-- 3. 移除沒有訂單的購買用戶, 讓他們可以重新下單
+for i = 4, #ARGV do
+    if (bitmap) then
+        redis.call('setbit', buyersKey, ARGV[i], 0)
+    else
+        redis.call('srem', orderKey, ARGV[i])
+    end
+end
+
+-- 4. 有庫存時清除售罄標記
+if (targetStock > 0) then
+    redis.call('del', soldOutKey)
+end
+
+return 1
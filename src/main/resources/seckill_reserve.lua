@@ -0,0 +1,95 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 參數列表
+-- 優惠券id
+local voucherId = ARGV[1]
+-- 本節點的預留欄位 reserve:{node}
+local field = ARGV[2]
+-- 每個節點最多預留的數量
+local maxReserve = tonumber(ARGV[3])
+-- 可預留的剩餘庫存比例
+local share = tonumber(ARGV[4])
+-- 預留到期時間(毫秒), 節點當機時到期後由其他節點歸還
+local expireAt = tonumber(ARGV[5])
+-- 降級期間已售出但尚未重放的數量, 不可歸還
+local pending = tonumber(ARGV[6])
+
+-- 數據key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+-- 與庫存租約共用, 預留數量在對帳時計入Redis庫存
+local leaseKey = 'seckill:lease:' .. voucherId
+
+local segments = tonumber(redis.call('hget', metaKey, 'segments')) or 1
+
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+local stockKeys = {}
+if (segments > 1) then
+    for i = 0, segments - 1 do
+        stockKeys[i + 1] = stockKey .. ':' .. i
+    end
+else
+    stockKeys[1] = stockKey
+end
+
+-- 歸還庫存, 分段時放回第一段
+local function giveBack(n)
+    redis.call('incrby', stockKeys[1], n)
+    redis.call('del', soldOutKey)
+end
+
+-- 1. 歸還其他節點已到期的預留 (例如節點當機)
+local fields = redis.call('hgetall', leaseKey)
+for i = 1, #fields, 2 do
+    local f = fields[i]
+    if (string.sub(f, 1, 8) == 'reserve:' and string.sub(f, -4) == ':exp' and f ~= field .. ':exp'
+            and tonumber(fields[i + 1]) < nowMillis) then
+        local owner = string.sub(f, 1, -5)
+        local n = tonumber(redis.call('hget', leaseKey, owner)) or 0
+        redis.call('hdel', leaseKey, owner, f)
+        if (n > 0) then
+            giveBack(n)
+        end
+    end
+end
+
+-- 2. 目標預留量: 剩餘庫存 (含本節點預留) 的 share 比例, 不超過上限, 不少於尚未重放的數量
+local stock = 0
+for i = 1, #stockKeys do
+    stock = stock + math.max(tonumber(redis.call('get', stockKeys[i])) or 0, 0)
+end
+local current = tonumber(redis.call('hget', leaseKey, field)) or 0
+local target = math.min(maxReserve, math.floor((stock + current) * share))
+target = math.max(target, pending)
+
+-- 3. 不足時從庫存補足, 超過時歸還 (剩餘庫存減少時逐步歸還)
+local reserved = current
+if (target > current) then
+    local need = target - current
+    for i = 1, #stockKeys do
+        local n = math.min(math.max(tonumber(redis.call('get', stockKeys[i])) or 0, 0), need)
+        if (n > 0) then
+            redis.call('decrby', stockKeys[i], n)
+            need = need - n
+            reserved = reserved + n
+        end
+        if (need == 0) then
+            break
+        end
+    end
+elseif (target < current) then
+    giveBack(current - target)
+    reserved = target
+end
+
+-- 4. 記錄預留並延長到期時間
+if (reserved > 0) then
+    redis.call('hset', leaseKey, field, reserved, field .. ':exp', expireAt)
+else
+    redis.call('hdel', leaseKey, field, field .. ':exp')
+end
+
+return {reserved, reserved - current}
@@ -0,0 +1,26 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 延遲Queue為全域key
+-- 參數列表
+-- 每次最多領取的數量
+local batch = tonumber(ARGV[1])
+-- 領取後的可見逾時(毫秒), 處理節點當機時到期後由其他節點重新領取
+local visibility = tonumber(ARGV[2])
+
+-- 數據key
+-- 延遲Queue key, 分數為付款期限, 成員為 orderId:voucherId:userId
+local timeoutKey = 'seckill:order:timeout'
+
+-- script
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+-- 1. 取出已到期的訂單 ZRANGEBYSCORE seckill:order:timeout -inf now LIMIT 0 batch
+local members = redis.call('zrangebyscore', timeoutKey, '-inf', nowMillis, 'LIMIT', 0, batch)
+
+-- 2. 將分數延後, 其他節點在可見逾時內不會領取到同一筆
+for i = 1, #members do
+    redis.call('zadd', timeoutKey, nowMillis + visibility, members[i])
+end
+
+return members
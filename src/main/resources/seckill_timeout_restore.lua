@@ -0,0 +1,43 @@
+-- 僅適用單機Redis (或主從/哨兵): 所有key都在腳本內以ARGV組出, 呼叫時KEYS為空
+-- Redis Cluster 無法依KEYS轉送到正確節點, 改用Cluster前須將key改由KEYS傳入並加上hash tag
+-- 延遲Queue為全域key, 與優惠券的庫存key不在同一個slot
+-- 參數列表
+-- 延遲Queue成員 orderId:voucherId:userId
+local member = ARGV[1]
+-- 優惠券id
+local voucherId = ARGV[2]
+-- 訂單id
+local orderId = ARGV[3]
+-- 訂單狀態key與保留秒數
+local statusKey = ARGV[4]
+local statusTtl = tonumber(ARGV[5])
+
+-- 數據key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+
+-- script
+-- 1. 移出延遲Queue, 已被移除代表已歸還過, 不重複歸還
+if (redis.call('zrem', 'seckill:order:timeout', member) == 0) then
+    return 0
+end
+
+local segments = tonumber(redis.call('hget', metaKey, 'segments')) or 1
+
+-- 2. 歸還庫存, 分段時放回第一段並清除售罄標記
+if (segments > 1) then
+    redis.call('incrby', stockKey .. ':0', 1)
+    redis.call('del', soldOutKey)
+elseif (redis.call('exists', stockKey) == 1) then
+    -- 未預熱或已過期時不建立庫存key, 由預熱及對帳處理
+    redis.call('incrby', stockKey, 1)
+end
+
+-- 3. 購買用戶保留不移除: 已取消的訂單仍佔用一人一單, 與資料庫的唯一索引及下單前的查詢一致
+
+-- 4. 記錄訂單狀態為已取消
+redis.call('hset', statusKey, orderId, 'cancelled')
+redis.call('expire', statusKey, statusTtl)
+
+return 1
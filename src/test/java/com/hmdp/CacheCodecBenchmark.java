@@ -0,0 +1,87 @@
+package com.hmdp;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.SmileCacheCodec;
+
+/*
+ * 緩存編碼的基準測試: 舊格式 (hutool JSON + RedisData) 與各 CacheCodec 的編碼及解碼吞吐量
+ * 需搭配 GC profiler 執行, gc.alloc.rate.norm 即每次操作的分配位元組數; 直接執行 main, 或:
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main CacheCodecBenchmark -prof gc
+ * 正確性 (編碼後可還原) 由 HmDianPingApplicationTests.testCacheCodecs 檢查
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class CacheCodecBenchmark {
+
+    @Param({"hutool", "json", "smile"})
+    private String codec;
+
+    @Param({"shop", "blog", "user"})
+    private String type;
+
+    private LocalDateTime now;
+
+    private Object value;
+
+    private Class<?> valueType;
+
+    private CacheCodec cacheCodec;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        now = LocalDateTime.now().withNano(0);
+        value = CacheCodecSamples.samples(now).get(type);
+        valueType = value.getClass();
+        if ("json".equals(codec)) {
+            cacheCodec = new JsonCacheCodec();
+        } else if ("smile".equals(codec)) {
+            cacheCodec = new SmileCacheCodec();
+        }
+        bytes = encode();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return cacheCodec == null ? CacheCodecSamples.hutoolEncode(value, now) : cacheCodec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return cacheCodec == null ? CacheCodecSamples.hutoolDecode(bytes, valueType)
+                : cacheCodec.decode(bytes, 0, bytes.length, valueType);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
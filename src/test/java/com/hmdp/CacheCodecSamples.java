@@ -0,0 +1,63 @@
+package com.hmdp;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.RedisData;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+/*
+ * 緩存編碼測試與基準測試共用的樣本資料, 以及舊格式 (hutool JSON + RedisData) 的編碼與解碼
+ */
+final class CacheCodecSamples {
+
+    private CacheCodecSamples() {
+    }
+
+    /*
+     * 取自 hmdp.sql 的樣本資料, key 為 shop / blog / user
+     */
+    static Map<String, Object> samples(LocalDateTime now) {
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00").setCreateTime(now)
+                .setUpdateTime(now);
+        Blog blog = new Blog().setId(4L).setShopId(4L).setUserId(2L).setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>男朋友给不了的浪漫要学会自己给🍒<br/>无法重来的一生·尽量快乐.")
+                .setLiked(1).setComments(104).setCreateTime(now).setUpdateTime(now);
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9f3tanffaxr");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+
+        Map<String, Object> samples = new LinkedHashMap<>();
+        samples.put("shop", shop);
+        samples.put("blog", blog);
+        samples.put("user", user);
+        return samples;
+    }
+
+    /*
+     * 舊格式: 以 RedisData 包裝邏輯過期時間後轉為 hutool JSON
+     */
+    static byte[] hutoolEncode(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static Object hutoolDecode(byte[] bytes, Class<?> type) {
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+}
@@ -1,27 +1,62 @@
 package com.hmdp;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import javax.annotation.Resource;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands.GeoLocation;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.util.unit.DataSize;
 
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
+
+import cn.hutool.core.io.FileUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.OrderIdDecoder;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderTableRouter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SnowflakeIdWorker;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -38,16 +73,100 @@ class HmDianPingApplicationTests {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
     @Test
     void testIdWorker() throws InterruptedException {
+        // 每個id一次INCR 與 號段模式 比較
+        RedisIdWorker segmentIdWorker = new RedisIdWorker(stringRedisTemplate, true, 100, 10000,
+                Duration.ofSeconds(1), 0.2);
+        Set<Long> incrIds = generateIds(redisIdWorker, "bench:incr");
+        Set<Long> segmentIds = generateIds(segmentIdWorker, "bench:segment");
+
+        // 不重複
+        assertEquals(300 * 100, incrIds.size());
+        assertEquals(300 * 100, segmentIds.size());
+    }
+
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        // 兩個節點各租借一個worker id, 同時生成不重複
+        List<SnowflakeIdWorker> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SnowflakeIdWorker node = new SnowflakeIdWorker(stringRedisTemplate, "bench-node-" + i, Set.of("order"),
+                    Duration.ofSeconds(30), Duration.ofMillis(5), Duration.ofSeconds(1));
+            node.heartbeat();
+            nodes.add(node);
+        }
+
         CountDownLatch latch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            SnowflakeIdWorker node = nodes.get(i % nodes.size());
+            es.submit(() -> {
+                for (int j = 0; j < 100; j++) {
+                    ids.add(node.nextId());
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        long end = System.currentTimeMillis();
+        System.out.println("snowflake time: " + (end - begin));
+        assertEquals(300 * 100, ids.size());
+
+        // 時間與Redis自增的id相同: 以 OrderIdDecoder 解析為本地時間, 且不早於之前生成的Redis自增id
+        long redisId = redisIdWorker.nextId("bench:snowflake");
+        LocalDateTime latest = LocalDateTime.now();
+        for (Long id : ids) {
+            LocalDateTime createTime = OrderIdDecoder.createTime(id);
+            assertTrue(!createTime.isAfter(latest)
+                    && Duration.between(createTime, latest).getSeconds() <= (end - begin) / 1000 + 2);
+        }
+        assertTrue(nodes.get(0).nextId() > redisId);
+
+        // 只歸還本測試租借的worker id
+        for (SnowflakeIdWorker node : nodes) {
+            node.release();
+        }
+    }
+
+    @Test
+    void testOrderTableRouter() {
+        // 訂單id中的時間決定分表, 2026-10 之前的訂單在原表
+        OrderTableRouter router = new OrderTableRouter(true, "2026-10");
+        long orderId = redisIdWorker.nextId("order");
+        LocalDateTime createTime = OrderIdDecoder.createTime(orderId);
+        assertTrue(Duration.between(createTime, LocalDateTime.now()).abs().getSeconds() <= 1);
+        assertEquals("tb_voucher_order_" + createTime.format(DateTimeFormatter.ofPattern("yyyyMM")),
+                router.tableOf(orderId));
+        assertEquals("tb_voucher_order", router.tableOf(YearMonth.of(2026, 9)));
+
+        // 時間區間只查詢涵蓋的月份
+        assertEquals(Arrays.asList("tb_voucher_order", "tb_voucher_order_202610"),
+                router.tablesBetween(LocalDateTime.of(2026, 9, 20, 0, 0), LocalDateTime.of(2026, 10, 5, 0, 0)));
+        assertTrue(OrderIdDecoder.minId(createTime) <= orderId
+                && orderId < OrderIdDecoder.minId(createTime.plusSeconds(1)));
+    }
+
+    private Set<Long> generateIds(RedisIdWorker idWorker, String keyPrefix) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(300);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
 
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id: " + id);
+                long id = idWorker.nextId(keyPrefix);
+                ids.add(id);
             }
             latch.countDown();
         };
@@ -59,7 +178,8 @@ class HmDianPingApplicationTests {
 
         latch.await();
         long end = System.currentTimeMillis();
-        System.out.println("time: " + (end - begin));
+        System.out.println(keyPrefix + " time: " + (end - begin));
+        return ids;
     }
 
     @Test
@@ -67,6 +187,72 @@ class HmDianPingApplicationTests {
         Shop shop = shopService.getById(1L);
 
         cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + 1L, shop, 10L, TimeUnit.SECONDS);
+        assertEquals(shop, shopService.queryWithLogicalExpire(1L));
+    }
+
+    @Test
+    void testLocalCache() throws InterruptedException {
+        // 兩個節點都啟用店鋪的本地緩存
+        CacheClient node1 = new CacheClient(stringRedisTemplate, listenerContainer, meterRegistry, cacheCodecs,
+                "json", Set.of(RedisConstants.CACHE_SHOP_KEY), 1000, Duration.ofSeconds(30));
+        CacheClient node2 = new CacheClient(stringRedisTemplate, listenerContainer, meterRegistry, cacheCodecs,
+                "json", Set.of(RedisConstants.CACHE_SHOP_KEY), 1000, Duration.ofSeconds(30));
+        listenerContainer.addMessageListener(node2, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        AtomicInteger dbQueries = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            dbQueries.incrementAndGet();
+            return shopService.getById(id);
+        };
+
+        // 第一次查詢資料庫, 第二次由Redis返回, 之後由本地緩存返回
+        node1.delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+        Counter l1Hits = meterRegistry.counter("cache.client.requests", "prefix", RedisConstants.CACHE_SHOP_KEY,
+                "tier", "l1", "result", "hit");
+        double hitsBefore = l1Hits.count();
+        int count = 10000;
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            node2.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L,
+                    TimeUnit.MINUTES);
+        }
+        System.out.println("local cache time: " + (System.currentTimeMillis() - begin));
+        assertEquals(1, dbQueries.get());
+        assertEquals(count - 2, (int) (l1Hits.count() - hitsBefore));
+
+        // 其他節點刪除後, 本節點的本地緩存也被移除
+        node1.delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+        Thread.sleep(200);
+        node2.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        assertEquals(2, dbQueries.get());
+
+        // 回填緩存不通知其他節點: 節點2的本地緩存在節點1回填後仍然命中
+        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+        node1.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        assertEquals(3, dbQueries.get());
+        Thread.sleep(200);
+        hitsBefore = l1Hits.count();
+        node2.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        assertEquals(1, (int) (l1Hits.count() - hitsBefore));
+        listenerContainer.removeMessageListener(node2);
+    }
+
+    @Test
+    void testCacheCodecs() {
+        // 舊格式 (hutool JSON + RedisData) 及各 CacheCodec 編碼後都能還原, 且新格式 (含header) 不大於舊格式
+        // 吞吐量及分配量請以 CacheCodecBenchmark (JMH, -prof gc) 量測
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        for (Object value : CacheCodecSamples.samples(now).values()) {
+            Class<?> type = value.getClass();
+            byte[] legacy = CacheCodecSamples.hutoolEncode(value, now);
+            assertEquals(value, CacheCodecSamples.hutoolDecode(legacy, type));
+            for (CacheCodec codec : cacheCodecs) {
+                byte[] bytes = codec.encode(value);
+                assertEquals(value, codec.decode(bytes, 0, bytes.length, type));
+                assertTrue(bytes.length + CacheClient.HEADER_LENGTH < legacy.length,
+                        codec.name() + " " + type.getSimpleName() + ": " + (bytes.length + CacheClient.HEADER_LENGTH)
+                                + " >= " + legacy.length);
+            }
+        }
     }
 
     @Test
@@ -115,4 +301,253 @@ class HmDianPingApplicationTests {
         Long size = stringRedisTemplate.opsForHyperLogLog().size("hl2");
         System.out.println("count: " + size);
     }
+
+    @Test
+    void testBuyerMemory() {
+        String setKey = "bench:buyers:set";
+        String bitmapKey = "bench:buyers:bitmap";
+        stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+
+        // 寫入100萬個購買用戶, 分別使用SET與bitmap, 每1000筆一個pipeline
+        int buyers = 1000000;
+        for (int i = 1; i <= buyers; i += 1000) {
+            int from = i;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (int userId = from; userId < from + 1000 && userId <= buyers; userId++) {
+                    conn.sAdd(setKey, String.valueOf(userId));
+                    conn.setBit(bitmapKey, userId, true);
+                }
+                return null;
+            });
+        }
+
+        // 比較記憶體用量 MEMORY USAGE key SAMPLES 0
+        Long setBytes = memoryUsage(setKey);
+        Long bitmapBytes = memoryUsage(bitmapKey);
+        System.out.println("set: " + setBytes + " bytes, bitmap: " + bitmapBytes + " bytes");
+        System.out.println("count: " + stringRedisTemplate.opsForSet().size(setKey) + " / "
+                + stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection
+                        .bitCount(bitmapKey.getBytes(StandardCharsets.UTF_8))));
+
+        stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+    }
+
+    private Long memoryUsage(String key) {
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("MEMORY",
+                "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testStockLease() throws InterruptedException {
+        long voucherId = 900001L;
+        int stock = 200;
+        List<String> keys = Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                RedisConstants.SECKILL_META_KEY + voucherId, RedisConstants.SECKILL_ORDER_KEY + voucherId,
+                RedisConstants.SECKILL_LEASE_KEY + voucherId, "bench:lease:status", "stream.orders.1");
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_META_KEY + voucherId, "stock",
+                String.valueOf(stock));
+
+        // 4個模擬節點, 每次租借20個, 1000個用戶同時搶購
+        List<SeckillStockLease> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(new SeckillStockLease(stringRedisTemplate, "node-" + i, 20, Duration.ofSeconds(10),
+                    Duration.ofMillis(50)));
+        }
+        int users = 1000;
+        AtomicInteger success = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(users);
+        for (int i = 1; i <= users; i++) {
+            long userId = i;
+            SeckillStockLease node = nodes.get(i % nodes.size());
+            es.submit(() -> {
+                try {
+                    // 分片數設為1000, 訊息寫入 stream.orders.1, 不會被訂單消費者讀取
+                    if (node.purchase(voucherId, userId, userId, 1000, "bench:lease:status", 60, 0) == 0) {
+                        success.incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+
+        // 共用的租約key只記錄到期時間, 下單扣減的是各節點自己的key
+        for (Object field : stringRedisTemplate.opsForHash().keys(RedisConstants.SECKILL_LEASE_KEY + voucherId)) {
+            assertTrue(field.toString().endsWith(":exp"));
+        }
+
+        // 歸還所有租約後: 不超賣, 且沒有庫存留在租約中
+        for (SeckillStockLease node : nodes) {
+            node.release(voucherId);
+        }
+        System.out.println("success: " + success.get());
+        assertEquals(stock, success.get());
+        assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+        assertEquals(stock, stringRedisTemplate.opsForSet().size(RedisConstants.SECKILL_ORDER_KEY + voucherId));
+        assertEquals(stock, stringRedisTemplate.opsForStream().size("stream.orders.1"));
+
+        // 模擬節點當機: 補10個庫存, 節點A租走後不歸還, 到期後由節點B收回並售出
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, "10");
+        SeckillStockLease crashed = new SeckillStockLease(stringRedisTemplate, "node-crashed", 20,
+                Duration.ofMillis(100), Duration.ofMillis(50));
+        SeckillStockLease survivor = new SeckillStockLease(stringRedisTemplate, "node-survivor", 20,
+                Duration.ofMillis(100), Duration.ofMillis(50));
+        assertEquals(0, crashed.purchase(voucherId, 100001L, 100001L, 1000, "bench:lease:status", 60, 0));
+        assertEquals(1, survivor.purchase(voucherId, 100002L, 100002L, 1000, "bench:lease:status", 60, 0));
+        Thread.sleep(300);
+        int sold = 0;
+        for (long userId = 100002L; userId < 100020L; userId++) {
+            if (survivor.purchase(voucherId, userId, userId, 1000, "bench:lease:status", 60, 0) == 0) {
+                sold++;
+            }
+        }
+        assertEquals(9, sold);
+
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.delete(stringRedisTemplate.keys(RedisConstants.SECKILL_LEASE_KEY + voucherId + ":*"));
+    }
+
+    @Test
+    void testCancelThenRepurchase() {
+        long voucherId = 900002L;
+        List<String> keys = Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                RedisConstants.SECKILL_META_KEY + voucherId, RedisConstants.SECKILL_ORDER_KEY + voucherId,
+                "bench:cancel:status", "stream.orders.2");
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, "1");
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_META_KEY + voucherId, "stock", "1");
+        DefaultRedisScript<List> seckill = new DefaultRedisScript<>();
+        seckill.setLocation(new ClassPathResource("seckill_batch.lua"));
+        seckill.setResultType(List.class);
+        DefaultRedisScript<Long> restore = new DefaultRedisScript<>();
+        restore.setLocation(new ClassPathResource("seckill_timeout_restore.lua"));
+        restore.setResultType(Long.class);
+
+        // 1. 用戶1下單, 分片數設為1000, 訊息寫入 stream.orders.2, 不會被訂單消費者讀取
+        assertEquals(Collections.singletonList(0L), stringRedisTemplate.execute(seckill, Collections.emptyList(),
+                "1", "all", "1000", "60", "60000", String.valueOf(voucherId), "10001", "bench:cancel:status"));
+        String member = "10001:" + voucherId + ":1";
+        assertTrue(stringRedisTemplate.opsForZSet().score(RedisConstants.SECKILL_ORDER_TIMEOUT_KEY, member) != null);
+
+        // 2. 逾期取消: 歸還庫存, 重複歸還無效
+        assertEquals(1L, stringRedisTemplate.execute(restore, Collections.emptyList(),
+                member, String.valueOf(voucherId), "10001", "bench:cancel:status", "60"));
+        assertEquals(0L, stringRedisTemplate.execute(restore, Collections.emptyList(),
+                member, String.valueOf(voucherId), "10001", "bench:cancel:status", "60"));
+        assertEquals("1", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+        assertEquals("cancelled", stringRedisTemplate.opsForHash().get("bench:cancel:status", "10001"));
+
+        // 3. 取消後同一用戶不可再次下單 (與資料庫一人一單一致), 歸還的庫存由其他用戶買到
+        assertEquals(Collections.singletonList(2L), stringRedisTemplate.execute(seckill, Collections.emptyList(),
+                "1", "all", "1000", "60", "0", String.valueOf(voucherId), "10002", "bench:cancel:status"));
+        assertEquals(Collections.singletonList(0L), stringRedisTemplate.execute(seckill, Collections.emptyList(),
+                "2", "all", "1000", "60", "0", String.valueOf(voucherId), "10003", "bench:cancel:status"));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_KEY + voucherId));
+
+        // 4. 庫存key不存在時視為售罄, 不會使腳本出錯
+        stringRedisTemplate.delete(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        assertEquals(Collections.singletonList(1L), stringRedisTemplate.execute(seckill, Collections.emptyList(),
+                "3", "all", "1000", "60", "0", String.valueOf(voucherId), "10004", "bench:cancel:status"));
+
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void testDegradedReserve() {
+        long voucherId = 900003L;
+        String stockKey = RedisConstants.SECKILL_STOCK_KEY + voucherId;
+        String leaseKey = RedisConstants.SECKILL_LEASE_KEY + voucherId;
+        List<String> keys = Arrays.asList(stockKey, leaseKey, RedisConstants.SECKILL_META_KEY + voucherId,
+                RedisConstants.SECKILL_ORDER_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.opsForValue().set(stockKey, "100");
+        DefaultRedisScript<List> reserve = new DefaultRedisScript<>();
+        reserve.setLocation(new ClassPathResource("seckill_reserve.lua"));
+        reserve.setResultType(List.class);
+        DefaultRedisScript<Long> journal = new DefaultRedisScript<>();
+        journal.setLocation(new ClassPathResource("seckill_journal.lua"));
+        journal.setResultType(Long.class);
+        String expireAt = String.valueOf(System.currentTimeMillis() + 60000);
+
+        // 1. 預留剩餘庫存的10%, 已從庫存扣除
+        stringRedisTemplate.execute(reserve, Collections.emptyList(),
+                String.valueOf(voucherId), "reserve:node-a", "20", "0.1", expireAt, "0");
+        assertEquals("90", stringRedisTemplate.opsForValue().get(stockKey));
+        assertEquals("10", stringRedisTemplate.opsForHash().get(leaseKey, "reserve:node-a"));
+
+        // 2. 降級期間售出3個, 正常流程售完其餘庫存後逐步歸還, 但保留尚未重放的3個
+        stringRedisTemplate.opsForValue().set(stockKey, "0");
+        stringRedisTemplate.execute(reserve, Collections.emptyList(),
+                String.valueOf(voucherId), "reserve:node-a", "20", "0.1", expireAt, "3");
+        assertEquals("7", stringRedisTemplate.opsForValue().get(stockKey));
+        assertEquals("3", stringRedisTemplate.opsForHash().get(leaseKey, "reserve:node-a"));
+
+        // 3. 重放時從預留扣減, 不再扣減庫存
+        for (int userId = 1; userId <= 3; userId++) {
+            stringRedisTemplate.execute(journal, Collections.emptyList(),
+                    String.valueOf(voucherId), String.valueOf(userId), String.valueOf(20000 + userId), "0",
+                    "reserve:node-a");
+        }
+        assertEquals("7", stringRedisTemplate.opsForValue().get(stockKey));
+        assertEquals("0", stringRedisTemplate.opsForHash().get(leaseKey, "reserve:node-a"));
+
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void testJournalThroughput() throws IOException {
+        int count = 100000;
+        Path dir = Files.createTempDirectory("order-journal");
+
+        // 1. 本地訂單日誌, 依排程刷新到磁碟
+        OrderJournal journal = new OrderJournal(dir.resolve("async").toString(), DataSize.ofMegabytes(64), false);
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            journal.append((i + ",1,10").getBytes(StandardCharsets.UTF_8));
+        }
+        journal.flush();
+        long journalNanos = System.nanoTime() - begin;
+
+        // 2. 本地訂單日誌, 每筆寫入後刷到磁碟
+        int forcedCount = count / 10;
+        OrderJournal forced = new OrderJournal(dir.resolve("force").toString(), DataSize.ofMegabytes(64), true);
+        begin = System.nanoTime();
+        for (int i = 0; i < forcedCount; i++) {
+            forced.append((i + ",1,10").getBytes(StandardCharsets.UTF_8));
+        }
+        long forcedNanos = System.nanoTime() - begin;
+
+        // 3. Redis消息Queue, 與seckill_batch.lua相同每筆一次XADD
+        String streamKey = "bench:journal:stream";
+        stringRedisTemplate.delete(streamKey);
+        begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> message = new HashMap<>(3);
+            message.put("userId", "1");
+            message.put("voucherId", "10");
+            message.put("id", String.valueOf(i));
+            stringRedisTemplate.opsForStream().add(streamKey, message);
+        }
+        long streamNanos = System.nanoTime() - begin;
+
+        System.out.println("journal: " + count * 1000000000L / journalNanos + " ops/s");
+        System.out.println("journal(force): " + forcedCount * 1000000000L / forcedNanos + " ops/s");
+        System.out.println("stream: " + count * 1000000000L / streamNanos + " ops/s");
+
+        // 重放全部記錄
+        int replayed = 0;
+        int n;
+        while ((n = journal.replay(1000, record -> true)) > 0) {
+            replayed += n;
+        }
+        assertEquals(count, replayed);
+
+        stringRedisTemplate.delete(streamKey);
+        FileUtil.del(dir.toFile());
+    }
 }